@@ -0,0 +1,235 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.print.PrintServiceLookup;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+
+/**
+ * The real server, started on port 4567 with an in-memory printer
+ * selected, a PostScript printer for the PDF documents, and a local HTTP
+ * server hosting the documents to print by URL. Used by the load and soak
+ * harnesses, no printer needed. The logs and templates of the server are
+ * written to a temporary directory.
+ *
+ * The documents served are /label.zpl (raw code) and /document.pdf, and
+ * /label.zpl?v=N serves the same label under different URLs.
+ *
+ * @author Alexandre D.
+ */
+final class BenchEnvironment {
+
+    /** Name of the in-memory printer. */
+    static final String PRINTER = "Common-PrintServer Bench";
+
+    private final MemoryPrintService printer;
+    private final PostScriptSink postScript;
+    private final HttpServer documents;
+    private final String serverUrl;
+    private final String documentsUrl;
+
+    private BenchEnvironment(MemoryPrintService printer, PostScriptSink postScript, HttpServer documents, int serverPort) {
+        this.printer = printer;
+        this.postScript = postScript;
+        this.documents = documents;
+        this.serverUrl = "http://127.0.0.1:" + serverPort;
+        this.documentsUrl = "http://127.0.0.1:" + documents.getAddress().getPort();
+    }
+
+    /**
+     * Start the server and the document server. Server settings must be set
+     * as commonprintserver.* system properties before.
+     *
+     * @param pdfPages Number of pages of /document.pdf.
+     * @return Started environment.
+     * @throws IOException If a server cannot be started.
+     */
+    static BenchEnvironment start(int pdfPages) throws IOException {
+        String directory = Files.createTempDirectory("Common-PrintServer-bench").toString();
+        System.setProperty("commonprintserver.log.file.dir", System.getProperty("commonprintserver.log.file.dir", directory));
+        System.setProperty("commonprintserver.templates.dir", System.getProperty("commonprintserver.templates.dir", directory));
+
+        MemoryPrintService printer = new MemoryPrintService(PRINTER);
+        PrintServiceLookup.registerService(printer);
+        PostScriptSink postScript = PostScriptSink.register();
+
+        byte[] label = "^XA^FO50,50^A0N,40,40^FDCommon-PrintServer^FS^XZ".getBytes(StandardCharsets.US_ASCII);
+        File pdfFile = PdfLoadBenchmark.createPdf(pdfPages);
+        byte[] pdf = Files.readAllBytes(pdfFile.toPath());
+        pdfFile.delete();
+
+        HttpServer documents = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        documents.createContext("/label.zpl", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, label.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(label);
+            }
+        });
+        documents.createContext("/document.pdf", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+            exchange.sendResponseHeaders(200, pdf.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(pdf);
+            }
+        });
+        documents.setExecutor(Executors.newCachedThreadPool());
+        documents.start();
+
+        CommonPrintServerServer.getInstance().start();
+        spark.Spark.awaitInitialization();
+
+        BenchEnvironment environment = new BenchEnvironment(printer, postScript, documents, spark.Spark.port());
+        environment.select(PRINTER);
+
+        return environment;
+    }
+
+    /**
+     * Select the printer of the print requests.
+     *
+     * @param name Printer name.
+     * @throws IOException If the printer cannot be selected.
+     */
+    void select(String name) throws IOException {
+        String response = this.request("GET", "/setPrinter/" + encode(name), null);
+        if (!response.contains("\"OK\"")) {
+            throw new IOException("Unable to select the printer " + name);
+        }
+    }
+
+    /**
+     * Stop the servers.
+     */
+    void stop() {
+        spark.Spark.stop();
+        spark.Spark.awaitStop();
+        this.documents.stop(0);
+    }
+
+    MemoryPrintService getPrinter() {
+        return printer;
+    }
+
+    PostScriptSink getPostScript() {
+        return postScript;
+    }
+
+    /**
+     * @return Number of documents printed, raw and PDF.
+     */
+    long getJobs() {
+        return this.printer.getJobs() + this.postScript.getJobs();
+    }
+
+    /**
+     * @param path Path of a print request, ex: /printFileByURL.
+     * @return Path of the request for the PostScript printer.
+     */
+    String getPostScriptPath(String path) {
+        return "/printers/" + encode(this.postScript.getName()) + path;
+    }
+
+    private static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param path Document path, ex: /document.pdf.
+     * @return URL of a document.
+     */
+    String getDocumentUrl(String path) {
+        return this.documentsUrl + path;
+    }
+
+    /**
+     * Send a request to the server. The response is read entirely, so that
+     * the connection is kept alive for the next request.
+     *
+     * @param method HTTP method.
+     * @param path Path and query.
+     * @param body Request body, null for none.
+     * @return Response body.
+     * @throws IOException If the request fails, or the response status is an error.
+     */
+    String request(String method, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(this.serverUrl + path).openConnection();
+
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        if (input != null) {
+            try (InputStream stream = input) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = stream.read(buffer)) > 0) {
+                    response.write(buffer, 0, read);
+                }
+            }
+        }
+        if (status >= 400) {
+            throw new IOException("HTTP " + status + " " + path);
+        }
+
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check that a response of the server holds no error.
+     *
+     * @param response Response body.
+     * @return True if the error is empty.
+     */
+    static boolean isSuccess(String response) {
+        return response.contains("\"error\":\"\"");
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spooling of a raw code to an IPP queue, played by a local IPP responder,
+ * with Print-Job or with Create-Job and Send-Document.
+ *
+ * @author Alexandre D.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dcommonprintserver.log.file.enabled=false"})
+@State(Scope.Benchmark)
+public class IppPrinterBenchmark {
+
+    /** True for Create-Job and Send-Document, false for Print-Job. */
+    @Param({"false", "true"})
+    public boolean createJob;
+
+    /** Size of the raw code, in bytes. */
+    @Param({"512", "262144"})
+    public int size;
+
+    private IppStub stub;
+    private CommonPrintServerIppPrinter printer;
+    private byte[] code;
+
+    @Setup
+    public void setup() throws IOException {
+        this.stub = new IppStub();
+
+        System.setProperty("commonprintserver.ipp.createJob", String.valueOf(this.createJob));
+        this.printer = new CommonPrintServerIppPrinter("Benchmark", this.stub.getUri() + "/printers/Stub");
+
+        StringBuilder sb = new StringBuilder("^XA");
+        while (sb.length() < this.size - 3) {
+            sb.append("^FO50,50^FDCommon-PrintServer^FS");
+        }
+        sb.setLength(Math.max(0, this.size - 3));
+        sb.append("^XZ");
+        this.code = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.stub.stop();
+    }
+
+    @Benchmark
+    public String printRaw() {
+        return CommonPrintServerPrintServices.printRaw(new CommonPrintServerJob(this.printer, this.code));
+    }
+
+}
@@ -0,0 +1,206 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local IPP responder standing in for a CUPS server with a single queue,
+ * "Stub". Print jobs are read and counted, then reported as completed.
+ *
+ * @author Alexandre D.
+ */
+public final class IppStub {
+
+    static {
+        // Without it, responses on kept-alive connections wait for the delayed ACK (40 ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final AtomicInteger jobIds = new AtomicInteger();
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    public IppStub() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "IppStub");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+    }
+
+    /**
+     * @return URI of the server, ex: ipp://127.0.0.1:41234.
+     */
+    public String getUri() {
+        return "ipp://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    public long getDocuments() {
+        return this.documents.sum();
+    }
+
+    public long getBytes() {
+        return this.bytes.sum();
+    }
+
+    public long getCancelled() {
+        return this.cancelled.sum();
+    }
+
+    /**
+     * @return Number of client connections (keep-alive reuses them).
+     */
+    public int getConnections() {
+        return this.connections.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        this.connections.add(exchange.getRemoteAddress());
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        drain(exchange.getRequestBody(), request);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(request.toByteArray()));
+        input.readUnsignedShort();
+        int operation = input.readUnsignedShort();
+        int requestId = input.readInt();
+        skipAttributes(input);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+        output.writeShort(0x0101);
+        output.writeShort(0);
+        output.writeInt(requestId);
+        output.writeByte(CommonPrintServerIpp.OPERATION_ATTRIBUTES);
+        string(output, CommonPrintServerIpp.CHARSET, "attributes-charset", "utf-8");
+        string(output, CommonPrintServerIpp.NATURAL_LANGUAGE, "attributes-natural-language", "en");
+
+        switch (operation) {
+            case CommonPrintServerIpp.PRINT_JOB:
+            case CommonPrintServerIpp.SEND_DOCUMENT:
+                this.bytes.add(input.available());
+                this.documents.increment();
+                this.job(output, this.jobIds.incrementAndGet(), 9);
+                break;
+            case CommonPrintServerIpp.CREATE_JOB:
+                this.job(output, this.jobIds.get() + 1, 3);
+                break;
+            case CommonPrintServerIpp.CANCEL_JOB:
+                this.cancelled.increment();
+                break;
+            case CommonPrintServerIpp.GET_JOBS:
+                for (int id = Math.max(1, this.jobIds.get() - 9); id <= this.jobIds.get(); id++) {
+                    this.job(output, id, 9);
+                }
+                break;
+            case CommonPrintServerIpp.CUPS_GET_PRINTERS:
+                output.writeByte(CommonPrintServerIpp.PRINTER_ATTRIBUTES);
+                string(output, CommonPrintServerIpp.NAME, "printer-name", "Stub");
+                break;
+            default:
+                break;
+        }
+        output.writeByte(CommonPrintServerIpp.END_OF_ATTRIBUTES);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/ipp");
+        exchange.sendResponseHeaders(200, body.size());
+        try (OutputStream response = exchange.getResponseBody()) {
+            body.writeTo(response);
+        }
+    }
+
+    private void job(DataOutputStream output, int id, int state) throws IOException {
+        output.writeByte(CommonPrintServerIpp.JOB_ATTRIBUTES);
+        integer(output, CommonPrintServerIpp.INTEGER, "job-id", id);
+        integer(output, CommonPrintServerIpp.ENUM, "job-state", state);
+        string(output, CommonPrintServerIpp.KEYWORD, "job-state-reasons", state == 9 ? "job-completed-successfully" : "none");
+    }
+
+    private static void skipAttributes(DataInputStream input) throws IOException {
+        int tag;
+
+        while ((tag = input.read()) >= 0 && tag != CommonPrintServerIpp.END_OF_ATTRIBUTES) {
+            if (tag >= 0x10) {
+                input.skipBytes(input.readUnsignedShort());
+                input.skipBytes(input.readUnsignedShort());
+            }
+        }
+    }
+
+    private static void drain(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+
+        while ((read = input.read(buffer)) > 0) {
+            output.write(buffer, 0, read);
+        }
+    }
+
+    private static void string(DataOutputStream output, int tag, String name, String value) throws IOException {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+
+        output.writeByte(tag);
+        output.writeShort(name.length());
+        output.writeBytes(name);
+        output.writeShort(encoded.length);
+        output.write(encoded);
+    }
+
+    private static void integer(DataOutputStream output, int tag, String name, int value) throws IOException {
+        output.writeByte(tag);
+        output.writeShort(name.length());
+        output.writeBytes(name);
+        output.writeShort(4);
+        output.writeInt(value);
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON rendering of the responses.
+ *
+ * @author Alexandre D.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dcommonprintserver.log.file.enabled=false"})
+@State(Scope.Benchmark)
+public class JsonTransformerBenchmark {
+
+    /** Response content : a string (printRaw), a job (/jobs/:id) or 100 jobs (/jobs). */
+    @Param({"string", "job", "jobs"})
+    public String model;
+
+    private CommonPrintServerJsonTransformer transformer;
+    private CommonPrintServerResponse response;
+
+    @Setup
+    public void setup() {
+        MemoryPrintService printer = new MemoryPrintService("Benchmark");
+        List<CommonPrintServerJob> jobs = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            CommonPrintServerJob job = new CommonPrintServerJob(printer, new byte[128]);
+            job.started();
+            job.finished("OK");
+            jobs.add(job);
+        }
+
+        this.transformer = new CommonPrintServerJsonTransformer();
+        switch (this.model) {
+            case "job":
+                this.response = new CommonPrintServerResponse(jobs.get(0));
+                break;
+            case "jobs":
+                this.response = new CommonPrintServerResponse(jobs);
+                break;
+            default:
+                this.response = new CommonPrintServerResponse("OK");
+                break;
+        }
+    }
+
+    @Benchmark
+    public String render() {
+        return this.transformer.render(this.response);
+    }
+
+}
@@ -0,0 +1,354 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end load test : the real server on port 4567, printing to an
+ * in-memory printer, driven by concurrent HTTP clients.
+ *
+ * Options, as key=value arguments :<br>
+ * - model : closed (each client sends its next request once answered) or
+ * open (requests are sent at a fixed rate, whatever the response time).<br>
+ * - clients : number of clients (closed), or of sending threads (open).<br>
+ * - rate : requests per second (open).<br>
+ * - duration / warmup : measurement and warmup time, in seconds.<br>
+ * - mix : share of each request, ex: raw:80,url:15,pdf:5.<br>
+ * - size : size of the raw codes, in bytes.<br>
+ * - pages : number of pages of the PDF document.<br>
+ * - wait : true to wait for the jobs to be printed (latency includes the
+ * printing), false to measure the queueing only.<br>
+ * - maxErrors : fail (exit code 1) above this number of errors.
+ *
+ * Latencies of the open model are measured from the time the request should
+ * have been sent, so a slow server is not hidden by a late client.
+ *
+ * @author Alexandre D.
+ */
+public final class LoadHarness {
+
+    private final BenchEnvironment environment;
+    private final Map<String, String> options;
+    private final Request[] mix;
+    private final AtomicInteger errorsReported = new AtomicInteger();
+
+    private LoadHarness(BenchEnvironment environment, Map<String, String> options) {
+        this.environment = environment;
+        this.options = options;
+        this.mix = this.parseMix(options.get("mix"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("model", "closed");
+        options.put("clients", "16");
+        options.put("rate", "200");
+        options.put("duration", "30");
+        options.put("warmup", "5");
+        options.put("mix", "raw:100");
+        options.put("size", "256");
+        options.put("pages", "2");
+        options.put("wait", "true");
+        options.put("maxErrors", "0");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown option: " + arg + ", options are " + options.keySet());
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        int clients = Integer.parseInt(options.get("clients"));
+        System.setProperty("http.maxConnections", Integer.toString(Math.max(5, clients)));
+        System.setProperty("commonprintserver.log.file.enabled", System.getProperty("commonprintserver.log.file.enabled", "false"));
+
+        BenchEnvironment environment = BenchEnvironment.start(Integer.parseInt(options.get("pages")));
+        Result result;
+        try {
+            LoadHarness harness = new LoadHarness(environment, options);
+            harness.run(Long.parseLong(options.get("warmup")));
+            long jobs = environment.getJobs();
+            result = harness.run(Long.parseLong(options.get("duration")));
+            result.report(options, environment.getJobs() - jobs);
+        } finally {
+            environment.stop();
+        }
+
+        System.exit(result.errors > Long.parseLong(options.get("maxErrors")) ? 1 : 0);
+    }
+
+    /**
+     * Send requests for a while.
+     *
+     * @param seconds Time to send requests.
+     * @return Latencies and errors.
+     * @throws InterruptedException If interrupted.
+     */
+    private Result run(long seconds) throws InterruptedException {
+        Result result = new Result(seconds);
+        int clients = Integer.parseInt(this.options.get("clients"));
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        if (seconds <= 0) {
+            return result;
+        }
+
+        if ("open".equals(this.options.get("model"))) {
+            double rate = Double.parseDouble(this.options.get("rate"));
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(clients, clients, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            long i = 0;
+
+            for (long intended = start; intended < end; intended = start + ++i * interval) {
+                long delay = intended - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                final long scheduled = intended;
+                final Request request = this.mix[(int) (i % this.mix.length)];
+                executor.execute(() -> result.recorder().record(scheduled, this.send(request)));
+            }
+            result.backlog = executor.getQueue().size();
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.MINUTES);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(clients);
+
+            for (int client = 0; client < clients; client++) {
+                final int offset = client;
+                executor.execute(() -> {
+                    Recorder recorder = result.recorder();
+                    for (int i = offset; System.nanoTime() < end; i++) {
+                        long sent = System.nanoTime();
+                        recorder.record(sent, this.send(this.mix[i % this.mix.length]));
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(seconds + 300, TimeUnit.SECONDS);
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+
+        return result;
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param request Request to send.
+     * @return True on success.
+     */
+    private boolean send(Request request) {
+        String error;
+
+        try {
+            String response = this.environment.request("POST", request.path, request.body);
+            if (BenchEnvironment.isSuccess(response)) {
+                return true;
+            }
+            error = response;
+        } catch (Exception e) {
+            error = e.toString();
+        }
+
+        // Only the first errors, there might be thousands.
+        if (this.errorsReported.getAndIncrement() < 10) {
+            System.err.println("Error on " + request.path + " : " + error);
+        }
+        return false;
+    }
+
+    /**
+     * Build the request mix : an array of 100 requests, in the given
+     * proportions, interleaved.
+     *
+     * @param mix Proportions, ex: raw:80,url:15,pdf:5.
+     * @return Requests to send, in turn.
+     */
+    private Request[] parseMix(String mix) {
+        String wait = Boolean.parseBoolean(this.options.get("wait")) ? "?wait" : "";
+        byte[] raw = new byte[Integer.parseInt(this.options.get("size"))];
+        Map<Request, Integer> weights = new LinkedHashMap<>();
+        int total = 0;
+
+        Arrays.fill(raw, (byte) 'A');
+        for (String part : mix.split(",")) {
+            String[] kind = part.split(":");
+            int weight = Integer.parseInt(kind[1].trim());
+            Request request;
+            switch (kind[0].trim()) {
+                case "raw":
+                    request = new Request("/printRaw" + wait, raw);
+                    break;
+                case "url":
+                    request = new Request("/printFileByURL" + wait,
+                            this.environment.getDocumentUrl("/label.zpl").getBytes(StandardCharsets.UTF_8));
+                    break;
+                case "pdf":
+                    request = new Request(this.environment.getPostScriptPath("/printFileByURL") + wait,
+                            this.environment.getDocumentUrl("/document.pdf").getBytes(StandardCharsets.UTF_8));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown request kind: " + kind[0]);
+            }
+            weights.put(request, weight);
+            total += weight;
+        }
+
+        // Smooth weighted round robin, so the kinds are interleaved.
+        Request[] requests = new Request[100];
+        Map<Request, Integer> current = new LinkedHashMap<>();
+        for (int i = 0; i < requests.length; i++) {
+            Request best = null;
+            for (Map.Entry<Request, Integer> entry : weights.entrySet()) {
+                int value = current.getOrDefault(entry.getKey(), 0) + entry.getValue();
+                current.put(entry.getKey(), value);
+                if (best == null || value > current.get(best)) {
+                    best = entry.getKey();
+                }
+            }
+            current.put(best, current.get(best) - total);
+            requests[i] = best;
+        }
+
+        return requests;
+    }
+
+    /**
+     * A request to send.
+     */
+    private static final class Request {
+
+        private final String path;
+        private final byte[] body;
+
+        private Request(String path, byte[] body) {
+            this.path = path;
+            this.body = body;
+        }
+
+    }
+
+    /**
+     * Latencies of a single thread, not shared.
+     */
+    private static final class Recorder {
+
+        private long[] latencies = new long[1 << 16];
+        private int count = 0;
+        private long errors = 0;
+
+        void record(long start, boolean success) {
+            long latency = System.nanoTime() - start;
+
+            if (!success) {
+                this.errors++;
+            }
+            if (this.count == this.latencies.length) {
+                this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+            }
+            this.latencies[this.count++] = latency;
+        }
+
+    }
+
+    /**
+     * Results of a run.
+     */
+    private static final class Result {
+
+        private final long seconds;
+        private final Queue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(() -> {
+            Recorder created = new Recorder();
+            this.recorders.add(created);
+            return created;
+        });
+        private long elapsedNanos;
+        private long errors;
+        private int backlog;
+
+        private Result(long seconds) {
+            this.seconds = seconds;
+        }
+
+        Recorder recorder() {
+            return this.recorder.get();
+        }
+
+        void report(Map<String, String> options, long printed) {
+            int count = 0;
+            for (Recorder r : this.recorders) {
+                count += r.count;
+                this.errors += r.errors;
+            }
+
+            long[] latencies = new long[count];
+            int position = 0;
+            for (Recorder r : this.recorders) {
+                System.arraycopy(r.latencies, 0, latencies, position, r.count);
+                position += r.count;
+            }
+            Arrays.sort(latencies);
+
+            System.out.println();
+            System.out.println("Options    : " + options);
+            System.out.println("Duration   : " + this.seconds + " s");
+            System.out.println("Requests   : " + count + " (" + this.errors + " errors)");
+            System.out.printf("Throughput : %.1f req/s%n", count * 1e9 / this.elapsedNanos);
+            if (this.backlog > 0) {
+                System.out.println("Backlog    : " + this.backlog + " requests were late at the end of the run");
+            }
+            System.out.printf("Latency    : p50=%.3f ms  p99=%.3f ms  p99.9=%.3f ms  max=%.3f ms%n",
+                    percentile(latencies, 0.5), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), percentile(latencies, 1));
+            System.out.println("Printed    : " + printed + " jobs");
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import javax.print.Doc;
+import javax.print.DocFlavor;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
+import javax.print.PrintService;
+import javax.print.ServiceUIFactory;
+import javax.print.attribute.Attribute;
+import javax.print.attribute.AttributeSet;
+import javax.print.attribute.HashAttributeSet;
+import javax.print.attribute.HashPrintJobAttributeSet;
+import javax.print.attribute.HashPrintServiceAttributeSet;
+import javax.print.attribute.PrintJobAttributeSet;
+import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.attribute.PrintServiceAttribute;
+import javax.print.attribute.PrintServiceAttributeSet;
+import javax.print.attribute.standard.PrinterName;
+import javax.print.event.PrintJobAttributeListener;
+import javax.print.event.PrintJobListener;
+import javax.print.event.PrintServiceAttributeListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory stand-in for a printer. Raw documents are read and counted, so
+ * that benchmarks and load tests exercise the whole print path without a
+ * printer. PDF documents are printed with a PrinterJob, which only drives
+ * the JDK print services : see PostScriptSink.
+ *
+ * @author Alexandre D.
+ */
+public final class MemoryPrintService implements PrintService {
+
+    private static final DocFlavor[] FLAVORS = {
+        DocFlavor.INPUT_STREAM.AUTOSENSE
+    };
+
+    private final String name;
+    private final LongAdder jobs = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public MemoryPrintService(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return Number of documents printed.
+     */
+    public long getJobs() {
+        return this.jobs.sum();
+    }
+
+    /**
+     * @return Number of raw bytes received.
+     */
+    public long getBytes() {
+        return this.bytes.sum();
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public DocPrintJob createPrintJob() {
+        return new MemoryPrintJob();
+    }
+
+    @Override
+    public void addPrintServiceAttributeListener(PrintServiceAttributeListener listener) {
+    }
+
+    @Override
+    public void removePrintServiceAttributeListener(PrintServiceAttributeListener listener) {
+    }
+
+    @Override
+    public PrintServiceAttributeSet getAttributes() {
+        PrintServiceAttributeSet attributes = new HashPrintServiceAttributeSet();
+
+        attributes.add(new PrinterName(this.name, null));
+
+        return attributes;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends PrintServiceAttribute> T getAttribute(Class<T> category) {
+        return category == PrinterName.class ? (T) new PrinterName(this.name, null) : null;
+    }
+
+    @Override
+    public DocFlavor[] getSupportedDocFlavors() {
+        return FLAVORS.clone();
+    }
+
+    @Override
+    public boolean isDocFlavorSupported(DocFlavor flavor) {
+        for (DocFlavor supported : FLAVORS) {
+            if (supported.equals(flavor)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Class<?>[] getSupportedAttributeCategories() {
+        return new Class<?>[0];
+    }
+
+    @Override
+    public boolean isAttributeCategorySupported(Class<? extends Attribute> category) {
+        return false;
+    }
+
+    @Override
+    public Object getDefaultAttributeValue(Class<? extends Attribute> category) {
+        return null;
+    }
+
+    @Override
+    public Object getSupportedAttributeValues(Class<? extends Attribute> category, DocFlavor flavor, AttributeSet attributes) {
+        return null;
+    }
+
+    @Override
+    public boolean isAttributeValueSupported(Attribute attribute, DocFlavor flavor, AttributeSet attributes) {
+        return false;
+    }
+
+    @Override
+    public AttributeSet getUnsupportedAttributes(DocFlavor flavor, AttributeSet attributes) {
+        return attributes == null ? null : new HashAttributeSet(attributes);
+    }
+
+    @Override
+    public ServiceUIFactory getServiceUIFactory() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "Memory printer : " + this.name;
+    }
+
+    /**
+     * Print job reading the whole document.
+     */
+    private final class MemoryPrintJob implements DocPrintJob {
+
+        @Override
+        public PrintService getPrintService() {
+            return MemoryPrintService.this;
+        }
+
+        @Override
+        public PrintJobAttributeSet getAttributes() {
+            return new HashPrintJobAttributeSet();
+        }
+
+        @Override
+        public void addPrintJobListener(PrintJobListener listener) {
+        }
+
+        @Override
+        public void removePrintJobListener(PrintJobListener listener) {
+        }
+
+        @Override
+        public void addPrintJobAttributeListener(PrintJobAttributeListener listener, PrintJobAttributeSet attributes) {
+        }
+
+        @Override
+        public void removePrintJobAttributeListener(PrintJobAttributeListener listener) {
+        }
+
+        @Override
+        public void print(Doc doc, PrintRequestAttributeSet attributes) throws PrintException {
+            try {
+                this.read(doc.getStreamForBytes());
+            } catch (IOException e) {
+                throw new PrintException(e);
+            }
+            MemoryPrintService.this.jobs.increment();
+        }
+
+        private void read(InputStream input) throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            long count = 0;
+            int read;
+
+            while ((read = input.read(buffer)) > 0) {
+                count += read;
+            }
+            MemoryPrintService.this.bytes.add(count);
+        }
+
+    }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spooling of a label to a raw TCP printer, played by a local socket reading
+ * everything it receives, with and without connection pooling.
+ *
+ * @author Alexandre D.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dcommonprintserver.log.file.enabled=false"})
+@State(Scope.Benchmark)
+public class NetworkPrinterBenchmark {
+
+    /** Connections kept open, 0 to connect for each job. */
+    @Param({"0", "1"})
+    public int poolSize;
+
+    /** Size of the raw code, in bytes. */
+    @Param({"512", "262144"})
+    public int size;
+
+    private ServerSocketChannel server;
+    private CommonPrintServerNetworkPrinter printer;
+    private byte[] code;
+
+    @Setup
+    public void setup() throws IOException {
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        Thread acceptor = new Thread(this::accept, "Printer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        System.setProperty("commonprintserver.network.poolSize", String.valueOf(this.poolSize));
+        this.printer = new CommonPrintServerNetworkPrinter("Benchmark",
+                InetSocketAddress.createUnresolved("127.0.0.1", this.server.socket().getLocalPort()));
+
+        StringBuilder sb = new StringBuilder("^XA");
+        while (sb.length() < this.size - 3) {
+            sb.append("^FO50,50^FDCommon-PrintServer^FS");
+        }
+        sb.setLength(Math.max(0, this.size - 3));
+        sb.append("^XZ");
+        this.code = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.server.close();
+    }
+
+    @Benchmark
+    public String printRaw() {
+        return CommonPrintServerPrintServices.printRaw(new CommonPrintServerJob(this.printer, this.code));
+    }
+
+    /**
+     * Accept the connections, each one read by its own thread.
+     */
+    private void accept() {
+        try {
+            while (true) {
+                SocketChannel client = this.server.accept();
+                Thread reader = new Thread(() -> drain(client), "Printer connection");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            // Closed by tearDown.
+        }
+    }
+
+    private static void drain(SocketChannel client) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        try (SocketChannel channel = client) {
+            while (channel.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // Connection reset.
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading of small and large PDF documents with each memory policy
+ * (pdf.memory setting).
+ *
+ * @author Alexandre D.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dcommonprintserver.log.file.enabled=false"})
+@State(Scope.Benchmark)
+public class PdfLoadBenchmark {
+
+    /** Number of pages of the document. */
+    @Param({"1", "500"})
+    public int pages;
+
+    @Param({"main", "mixed", "tempfile"})
+    public String policy;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        this.file = createPdf(this.pages);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        MemoryUsageSetting setting;
+
+        switch (this.policy) {
+            case "main":
+                setting = MemoryUsageSetting.setupMainMemoryOnly();
+                break;
+            case "tempfile":
+                setting = MemoryUsageSetting.setupTempFileOnly();
+                break;
+            default:
+                setting = MemoryUsageSetting.setupMixed(64L * 1024 * 1024);
+                break;
+        }
+
+        try (PDDocument document = PDDocument.load(this.file, setting)) {
+            return document.getNumberOfPages();
+        }
+    }
+
+    /**
+     * Create a PDF document with a few lines of text on each page.
+     *
+     * @param pages Number of pages.
+     * @return Temporary PDF file.
+     * @throws IOException If the document cannot be written.
+     */
+    static File createPdf(int pages) throws IOException {
+        File file = File.createTempFile("Common-PrintServer_bench_", ".pdf");
+
+        try (PDDocument document = new PDDocument()) {
+            for (int i = 0; i < pages; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(50, 700);
+                    for (int line = 0; line < 40; line++) {
+                        content.showText("Common-PrintServer page " + (i + 1) + ", line " + (line + 1));
+                        content.newLineAtOffset(0, -15);
+                    }
+                    content.endText();
+                }
+            }
+            document.save(file);
+        }
+
+        return file;
+    }
+
+}
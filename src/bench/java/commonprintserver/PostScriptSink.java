@@ -0,0 +1,181 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import javax.print.DocFlavor;
+import javax.print.MultiDocPrintService;
+import javax.print.PrintService;
+import javax.print.PrintServiceLookup;
+import javax.print.StreamPrintService;
+import javax.print.StreamPrintServiceFactory;
+import javax.print.attribute.AttributeSet;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PostScript stand-in for a system printer, for the PDF documents. It is the
+ * PostScript stream service of the JDK, driven by a PrinterJob like the
+ * system printers, writing to a sink which counts the documents and pages
+ * instead of keeping them.
+ *
+ * Stream services cannot be registered as print services, so the printer is
+ * listed by a lookup of its own.
+ *
+ * @author Alexandre D.
+ */
+final class PostScriptSink extends OutputStream {
+
+    /** DSC comments starting each page and ending each document. */
+    private static final byte[] PAGE = "%%Page:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EOF = "%%EOF".getBytes(StandardCharsets.US_ASCII);
+
+    private final StreamPrintService service;
+    private final LongAdder jobs = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+
+    /** Position in the current line, and whether the line still matches a comment. */
+    private int column = 0;
+    private boolean page = true;
+    private boolean eof = true;
+
+    private PostScriptSink() throws IOException {
+        StreamPrintServiceFactory[] factories = StreamPrintServiceFactory.lookupStreamPrintServiceFactories(
+                DocFlavor.SERVICE_FORMATTED.PAGEABLE, DocFlavor.BYTE_ARRAY.POSTSCRIPT.getMimeType());
+
+        if (factories.length == 0) {
+            throw new IOException("No PostScript stream print service");
+        }
+        this.service = factories[0].getPrintService(this);
+    }
+
+    /**
+     * Create the printer, and list it with the print services.
+     *
+     * @return Registered printer.
+     * @throws IOException If the JDK has no PostScript stream service.
+     */
+    static PostScriptSink register() throws IOException {
+        PostScriptSink sink = new PostScriptSink();
+
+        PrintServiceLookup.registerServiceProvider(new PrintServiceLookup() {
+            @Override
+            public PrintService[] getPrintServices(DocFlavor flavor, AttributeSet attributes) {
+                return flavor == null || sink.service.isDocFlavorSupported(flavor)
+                        ? new PrintService[]{sink.service}
+                        : new PrintService[0];
+            }
+
+            @Override
+            public MultiDocPrintService[] getMultiDocPrintServices(DocFlavor[] flavors, AttributeSet attributes) {
+                return new MultiDocPrintService[0];
+            }
+
+            @Override
+            public PrintService getDefaultPrintService() {
+                return null;
+            }
+
+            @Override
+            public PrintService[] getPrintServices() {
+                return new PrintService[]{sink.service};
+            }
+        });
+
+        return sink;
+    }
+
+    /**
+     * @return Name of the printer.
+     */
+    String getName() {
+        return this.service.getName();
+    }
+
+    /**
+     * @return Number of documents printed.
+     */
+    long getJobs() {
+        return this.jobs.sum();
+    }
+
+    /**
+     * @return Number of PostScript bytes received.
+     */
+    long getBytes() {
+        return this.bytes.sum();
+    }
+
+    /**
+     * @return Number of pages printed.
+     */
+    long getPages() {
+        return this.pages.sum();
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        this.bytes.increment();
+        this.scan((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        this.bytes.add(len);
+        for (int i = off; i < off + len; i++) {
+            this.scan(b[i]);
+        }
+    }
+
+    /**
+     * Count the comments starting a line.
+     *
+     * @param b Next byte of the document.
+     */
+    private void scan(byte b) {
+        if (b == '\n' || b == '\r') {
+            this.column = 0;
+            this.page = true;
+            this.eof = true;
+            return;
+        }
+
+        if (this.column < PAGE.length) {
+            this.page &= PAGE[this.column] == b;
+            if (this.page && this.column == PAGE.length - 1) {
+                this.pages.increment();
+            }
+        }
+        if (this.column < EOF.length) {
+            this.eof &= EOF[this.column] == b;
+            if (this.eof && this.column == EOF.length - 1) {
+                this.jobs.increment();
+            }
+        }
+        this.column++;
+    }
+
+}
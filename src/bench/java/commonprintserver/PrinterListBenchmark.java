@@ -0,0 +1,96 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.print.PrintService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the printer list, and the /getPrinters and /printers responses.
+ *
+ * @author Alexandre D.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dcommonprintserver.log.file.enabled=false"})
+@State(Scope.Benchmark)
+public class PrinterListBenchmark {
+
+    /** Number of installed printers. */
+    @Param({"5", "50"})
+    public int printers;
+
+    private Map<String, PrintService> services;
+    private CommonPrintServerPrinterRegistry.Snapshot snapshot;
+    private CommonPrintServerJsonTransformer transformer;
+
+    @Setup
+    public void setup() {
+        this.services = new LinkedHashMap<>();
+        for (int i = 0; i < this.printers; i++) {
+            PrintService printer = new MemoryPrintService("Zebra ZT410 (" + i + ")");
+            this.services.put(printer.getName(), printer);
+        }
+
+        this.snapshot = new CommonPrintServerPrinterRegistry.Snapshot(1, this.services);
+        this.transformer = new CommonPrintServerJsonTransformer();
+    }
+
+    @Benchmark
+    public CommonPrintServerPrinterRegistry.Snapshot snapshot() {
+        return new CommonPrintServerPrinterRegistry.Snapshot(2, this.services);
+    }
+
+    @Benchmark
+    public String getPrinters() {
+        return this.transformer.render(new CommonPrintServerResponse(this.snapshot.getJoinedNames()));
+    }
+
+    @Benchmark
+    public byte[] printers() {
+        return this.snapshot.getListing().getJson();
+    }
+
+    @Benchmark
+    public byte[] printersRendered() {
+        return new CommonPrintServerPrinterRegistry.Snapshot(2, this.services).getListing().getJson();
+    }
+
+}
@@ -0,0 +1,289 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Soak test : pushes raw and URL jobs through the real server, printing to
+ * an in-memory printer, for a long time. Heap after GC, open file
+ * descriptors, threads and the temporary files of the server are sampled,
+ * and the test fails (exit code 1) if one of them keeps growing : the
+ * maximum of the last third of the samples must stay close to the maximum of
+ * the first third. It also fails when no job was printed, above maxErrors,
+ * or without enough samples to judge the growth.
+ *
+ * Options, as key=value arguments :<br>
+ * - duration : test time, in minutes.<br>
+ * - jobs : stop after this number of jobs, 0 for no limit.<br>
+ * - clients : number of concurrent clients.<br>
+ * - mix : share of each request, ex: raw:90,url:5,pdf:5.<br>
+ * - urls : number of distinct URLs of the documents printed by URL.<br>
+ * - cache : false to disable the document cache (temporary files path).<br>
+ * - size : size of the raw codes, in bytes.<br>
+ * - pages : number of pages of the PDF document.<br>
+ * - sample : time between two samples, in seconds.<br>
+ * - warmup : number of samples ignored at the start.<br>
+ * - maxHeap : heap after GC not to exceed, in MB, 0 for no limit. Payloads
+ * kept by the finished jobs do not grow once the job history is full, run
+ * large payloads with this ceiling.<br>
+ * - maxErrors : fail above this number of errors.
+ *
+ * @author Alexandre D.
+ */
+public final class SoakHarness {
+
+    /** Allowed growth, between the first and the last third of the samples. */
+    private static final long HEAP_SLACK = 16L * 1024 * 1024;
+    private static final double HEAP_RATIO = 1.2;
+    private static final long FDS_SLACK = 20;
+    private static final long THREADS_SLACK = 10;
+    private static final long TEMP_FILES_SLACK = 20;
+    private static final long TEMP_BYTES_SLACK = 8L * 1024 * 1024;
+
+    private SoakHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("duration", "60");
+        options.put("jobs", "0");
+        options.put("clients", "8");
+        options.put("mix", "raw:90,url:5,pdf:5");
+        options.put("urls", "1000");
+        options.put("cache", "true");
+        options.put("size", "256");
+        options.put("pages", "2");
+        options.put("sample", "10");
+        options.put("warmup", "3");
+        options.put("maxHeap", "0");
+        options.put("maxErrors", "0");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown option: " + arg + ", options are " + options.keySet());
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        int clients = Integer.parseInt(options.get("clients"));
+        System.setProperty("http.maxConnections", Integer.toString(Math.max(5, clients)));
+        System.setProperty("commonprintserver.log.file.enabled", System.getProperty("commonprintserver.log.file.enabled", "false"));
+        System.setProperty("commonprintserver.cache.enabled", options.get("cache"));
+
+        BenchEnvironment environment = BenchEnvironment.start(Integer.parseInt(options.get("pages")));
+        boolean passed;
+        try {
+            passed = run(environment, options);
+        } finally {
+            environment.stop();
+        }
+
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Run the soak test.
+     *
+     * @param environment Started server.
+     * @param options Test options.
+     * @return True if jobs were printed, without too many errors, and the
+     * resources stayed bounded.
+     * @throws InterruptedException If interrupted.
+     */
+    private static boolean run(BenchEnvironment environment, Map<String, String> options) throws InterruptedException {
+        int clients = Integer.parseInt(options.get("clients"));
+        long maxJobs = Long.parseLong(options.get("jobs"));
+        int urls = Integer.parseInt(options.get("urls"));
+        long end = System.nanoTime() + TimeUnit.MINUTES.toNanos(Long.parseLong(options.get("duration")));
+        long sampleMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("sample")));
+        AtomicLong sent = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+
+        byte[] raw = new byte[Integer.parseInt(options.get("size"))];
+        Arrays.fill(raw, (byte) 'A');
+        int[] weights = new int[3];
+        for (String part : options.get("mix").split(",")) {
+            String[] kind = part.split(":");
+            weights[Arrays.asList("raw", "url", "pdf").indexOf(kind[0].trim())] = Integer.parseInt(kind[1].trim());
+        }
+        int total = weights[0] + weights[1] + weights[2];
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        for (int client = 0; client < clients; client++) {
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end && (maxJobs == 0 || sent.incrementAndGet() <= maxJobs)) {
+                    int kind = random.nextInt(total);
+                    String path = "/printRaw?wait";
+                    byte[] body = raw;
+                    if (kind >= weights[0]) {
+                        boolean label = kind < weights[0] + weights[1];
+                        String document = label ? "/label.zpl" : "/document.pdf";
+                        path = label ? "/printFileByURL?wait" : environment.getPostScriptPath("/printFileByURL?wait");
+                        body = environment.getDocumentUrl(document + "?v=" + random.nextInt(urls)).getBytes(StandardCharsets.UTF_8);
+                    }
+                    try {
+                        if (!BenchEnvironment.isSuccess(environment.request("POST", path, body))) {
+                            errors.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        List<Sample> samples = new ArrayList<>();
+        long start = System.nanoTime();
+        System.out.println("seconds,jobs,errors,heapMB,fds,threads,tempFiles,tempKB");
+        do {
+            Sample sample = Sample.take(environment.getJobs(), errors.get());
+            samples.add(sample);
+            System.out.println(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "," + sample);
+        } while (!executor.awaitTermination(sampleMillis, TimeUnit.MILLISECONDS));
+        samples.add(Sample.take(environment.getJobs(), errors.get()));
+
+        long jobs = environment.getJobs();
+        long maxErrors = Long.parseLong(options.get("maxErrors"));
+        System.out.println("Jobs printed : " + jobs + " (" + errors.get() + " errors)");
+        boolean passed = true;
+        if (jobs == 0) {
+            System.out.println("FAILED No job printed");
+            passed = false;
+        }
+        if (errors.get() > maxErrors) {
+            System.out.println("FAILED Errors : " + errors.get() + " (limit " + maxErrors + ")");
+            passed = false;
+        }
+
+        long maxHeap = Long.parseLong(options.get("maxHeap")) * 1024 * 1024;
+        if (maxHeap > 0) {
+            passed &= check("Heap ceiling", samples.get(0).values[0], max(samples, 0), maxHeap);
+        }
+
+        int warmup = Integer.parseInt(options.get("warmup"));
+        if (samples.size() - warmup < 6) {
+            System.out.println("FAILED Not enough samples to check the growth (" + samples.size() + "), run the test longer.");
+            return false;
+        }
+
+        List<Sample> measured = samples.subList(warmup, samples.size());
+        List<Sample> first = measured.subList(0, measured.size() / 3);
+        List<Sample> last = measured.subList(measured.size() - measured.size() / 3, measured.size());
+        return passed & check("Heap", max(first, 0), max(last, 0), (long) (max(first, 0) * HEAP_RATIO) + HEAP_SLACK)
+                & check("File descriptors", max(first, 1), max(last, 1), max(first, 1) + FDS_SLACK)
+                & check("Threads", max(first, 2), max(last, 2), max(first, 2) + THREADS_SLACK)
+                & check("Temporary files", max(first, 3), max(last, 3), max(first, 3) + TEMP_FILES_SLACK)
+                & check("Temporary bytes", max(first, 4), max(last, 4), max(first, 4) + TEMP_BYTES_SLACK);
+    }
+
+    private static boolean check(String name, long first, long last, long limit) {
+        boolean bounded = first < 0 || last <= limit;
+
+        System.out.println((bounded ? "OK    " : "GROWTH") + " " + name + " : " + first + " -> " + last + " (limit " + limit + ")");
+        return bounded;
+    }
+
+    private static long max(List<Sample> samples, int value) {
+        long max = Long.MIN_VALUE;
+
+        for (Sample sample : samples) {
+            max = Math.max(max, sample.values[value]);
+        }
+
+        return max;
+    }
+
+    /**
+     * Resources used at a point in time : heap after GC, file descriptors
+     * (-1 if unknown), threads, temporary files of the server and their size.
+     */
+    private static final class Sample {
+
+        private final long jobs;
+        private final long errors;
+        private final long[] values;
+
+        private Sample(long jobs, long errors, long[] values) {
+            this.jobs = jobs;
+            this.errors = errors;
+            this.values = values;
+        }
+
+        static Sample take(long jobs, long errors) {
+            System.gc();
+
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            long fds = -1;
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+                fds = ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+            }
+            long threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            long[] temp = new long[2];
+            File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(
+                    (dir, name) -> name.startsWith("Common-PrintServer") || name.startsWith("PDFBox"));
+            for (File file : files == null ? new File[0] : files) {
+                try (Stream<Path> paths = Files.walk(file.toPath())) {
+                    paths.filter(Files::isRegularFile).forEach(path -> {
+                        temp[0]++;
+                        temp[1] += path.toFile().length();
+                    });
+                } catch (IOException | RuntimeException e) {
+                    // Deleted while walking
+                }
+            }
+
+            return new Sample(jobs, errors, new long[]{heap, fds, threads, temp[0], temp[1]});
+        }
+
+        @Override
+        public String toString() {
+            return this.jobs + "," + this.errors + "," + this.values[0] / (1024 * 1024) + "," + this.values[1] + ","
+                    + this.values[2] + "," + this.values[3] + "," + this.values[4] / 1024;
+        }
+
+    }
+
+}
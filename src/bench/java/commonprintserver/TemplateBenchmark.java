@@ -0,0 +1,104 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of a label template, compared to building the same label with
+ * string concatenation.
+ *
+ * @author Alexandre D.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dcommonprintserver.log.file.enabled=false"})
+@State(Scope.Benchmark)
+public class TemplateBenchmark {
+
+    private static final String SOURCE = "^XA^CI28\n"
+            + "^FO50,50^A0N,40,40^FD${name}^FS\n"
+            + "^FO50,100^A0N,30,30^FD${address}^FS\n"
+            + "^FO50,140^A0N,30,30^FD${city}^FS\n"
+            + "^FO50,200^BY3^BCN,100,Y,N,N^FD${barcode}^FS\n"
+            + "^FO50,330^A0N,25,25^FDOrder ${order}^FS\n"
+            + "^XZ";
+
+    private CommonPrintServerTemplate template;
+    private Map<String, String> values;
+    private CommonPrintServerTemplate.Buffer buffer;
+
+    @Setup
+    public void setup() {
+        this.template = CommonPrintServerTemplate.compile("label", SOURCE, StandardCharsets.UTF_8);
+        this.values = new HashMap<>();
+        this.values.put("name", "Alexandre D.");
+        this.values.put("address", "1 rue de la Paix");
+        this.values.put("city", "75002 Paris");
+        this.values.put("barcode", "123456789012");
+        this.values.put("order", "2016-0406");
+        this.buffer = new CommonPrintServerTemplate.Buffer();
+    }
+
+    @Benchmark
+    public byte[] render() {
+        return this.template.render(this.values);
+    }
+
+    @Benchmark
+    public int renderToBuffer() {
+        this.buffer.clear();
+        this.template.render(this.values, this.buffer);
+
+        return this.buffer.getLength();
+    }
+
+    @Benchmark
+    public byte[] concatenate() {
+        String code = SOURCE;
+
+        for (Map.Entry<String, String> entry : this.values.entrySet()) {
+            code = code.replace("${" + entry.getKey() + "}", entry.getValue());
+        }
+
+        return code.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,204 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import javax.print.Doc;
+import javax.print.DocFlavor;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
+import javax.print.PrintService;
+import javax.print.ServiceUIFactory;
+import javax.print.attribute.Attribute;
+import javax.print.attribute.AttributeSet;
+import javax.print.attribute.HashAttributeSet;
+import javax.print.attribute.HashPrintJobAttributeSet;
+import javax.print.attribute.HashPrintServiceAttributeSet;
+import javax.print.attribute.PrintJobAttributeSet;
+import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.attribute.PrintServiceAttribute;
+import javax.print.attribute.PrintServiceAttributeSet;
+import javax.print.attribute.standard.PrinterInfo;
+import javax.print.attribute.standard.PrinterName;
+import javax.print.event.PrintJobAttributeListener;
+import javax.print.event.PrintJobListener;
+import javax.print.event.PrintServiceAttributeListener;
+
+/**
+ * Base of the printers driven by the server itself rather than by the system
+ * print services : a name, a fixed list of document flavors, and no
+ * attribute support. Subclasses only send the documents.
+ *
+ * @author Alexandre D.
+ */
+abstract class CommonPrintServerDirectPrinter implements PrintService {
+
+    private final String name;
+    private final DocFlavor[] flavors;
+
+    CommonPrintServerDirectPrinter(String name, DocFlavor... flavors) {
+        this.name = name;
+        this.flavors = flavors;
+    }
+
+    /**
+     * Send a document to the printer.
+     *
+     * @param doc Document, in one of the supported flavors.
+     * @param attributes Print request attributes, may be null.
+     * @throws PrintException If the document cannot be sent.
+     */
+    abstract void print(Doc doc, PrintRequestAttributeSet attributes) throws PrintException;
+
+    /**
+     * @return Description of the printer location, ex: host:port.
+     */
+    abstract String getLocation();
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public DocPrintJob createPrintJob() {
+        return new DirectPrintJob();
+    }
+
+    @Override
+    public void addPrintServiceAttributeListener(PrintServiceAttributeListener listener) {
+    }
+
+    @Override
+    public void removePrintServiceAttributeListener(PrintServiceAttributeListener listener) {
+    }
+
+    @Override
+    public PrintServiceAttributeSet getAttributes() {
+        PrintServiceAttributeSet attributes = new HashPrintServiceAttributeSet();
+
+        attributes.add(new PrinterName(this.name, null));
+        attributes.add(new PrinterInfo(this.getLocation(), null));
+
+        return attributes;
+    }
+
+    @Override
+    public <T extends PrintServiceAttribute> T getAttribute(Class<T> category) {
+        return category.cast(this.getAttributes().get(category));
+    }
+
+    @Override
+    public DocFlavor[] getSupportedDocFlavors() {
+        return this.flavors.clone();
+    }
+
+    @Override
+    public boolean isDocFlavorSupported(DocFlavor flavor) {
+        for (DocFlavor supported : this.flavors) {
+            if (supported.equals(flavor)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Class<?>[] getSupportedAttributeCategories() {
+        return new Class<?>[0];
+    }
+
+    @Override
+    public boolean isAttributeCategorySupported(Class<? extends Attribute> category) {
+        return false;
+    }
+
+    @Override
+    public Object getDefaultAttributeValue(Class<? extends Attribute> category) {
+        return null;
+    }
+
+    @Override
+    public Object getSupportedAttributeValues(Class<? extends Attribute> category, DocFlavor flavor, AttributeSet attributes) {
+        return null;
+    }
+
+    @Override
+    public boolean isAttributeValueSupported(Attribute attribute, DocFlavor flavor, AttributeSet attributes) {
+        return false;
+    }
+
+    @Override
+    public AttributeSet getUnsupportedAttributes(DocFlavor flavor, AttributeSet attributes) {
+        return attributes == null ? null : new HashAttributeSet(attributes);
+    }
+
+    @Override
+    public ServiceUIFactory getServiceUIFactory() {
+        return null;
+    }
+
+    /**
+     * Print job handing the document to the printer.
+     */
+    private final class DirectPrintJob implements DocPrintJob {
+
+        @Override
+        public PrintService getPrintService() {
+            return CommonPrintServerDirectPrinter.this;
+        }
+
+        @Override
+        public PrintJobAttributeSet getAttributes() {
+            return new HashPrintJobAttributeSet();
+        }
+
+        @Override
+        public void addPrintJobListener(PrintJobListener listener) {
+        }
+
+        @Override
+        public void removePrintJobListener(PrintJobListener listener) {
+        }
+
+        @Override
+        public void addPrintJobAttributeListener(PrintJobAttributeListener listener, PrintJobAttributeSet attributes) {
+        }
+
+        @Override
+        public void removePrintJobAttributeListener(PrintJobAttributeListener listener) {
+        }
+
+        @Override
+        public void print(Doc doc, PrintRequestAttributeSet attributes) throws PrintException {
+            if (!CommonPrintServerDirectPrinter.this.isDocFlavorSupported(doc.getDocFlavor())) {
+                throw new PrintException(CommonPrintServerDirectPrinter.this.name + " does not print " + doc.getDocFlavor().getMimeType() + " documents");
+            }
+
+            CommonPrintServerDirectPrinter.this.print(doc, attributes);
+        }
+
+    }
+
+}
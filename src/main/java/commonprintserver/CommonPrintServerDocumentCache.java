@@ -0,0 +1,464 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * On-disk cache of the documents printed by URL.
+ *
+ * Documents are stored once per content (file named after the SHA-256 of the
+ * content) and indexed by URL. A cached URL is revalidated with the ETag and
+ * Last-Modified of the previous response, so an unchanged document is neither
+ * downloaded nor written again. The least recently used URLs are evicted when
+ * the cache grows over its byte budget.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerDocumentCache {
+
+    /** Default byte budget (256 MB). */
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /** Maximum number of bytes copied by a single channel transfer. */
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    /** Name of the cached files : hexadecimal SHA-256. */
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    /** Used to handle a single instance of this class. */
+    private static final CommonPrintServerDocumentCache instance = new CommonPrintServerDocumentCache();
+
+    private final boolean enabled;
+    private final File directory;
+    private final long maxBytes;
+    private final long maxAge;
+
+    /** Cached URLs, least recently used first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Stored contents, by hash. */
+    private final Map<String, Document> documents = new HashMap<>();
+    private long bytes = 0;
+
+    /** Statistics. */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private CommonPrintServerDocumentCache() {
+        this.enabled = CommonPrintServerSettings.getBoolean("cache.enabled", true);
+        this.directory = new File(CommonPrintServerSettings.get("cache.dir",
+                new File(CommonPrintServerSpool.getInstance().getDirectory(), "cache").getPath()));
+        this.maxBytes = CommonPrintServerSettings.getLong("cache.maxBytes", DEFAULT_MAX_BYTES);
+        this.maxAge = CommonPrintServerSettings.getLong("cache.maxAge", 0) * 1000;
+
+        if (this.enabled) {
+            this.sweep();
+        }
+    }
+
+    /**
+     * Return the unique class instance.
+     *
+     * @return The class instance
+     */
+    static CommonPrintServerDocumentCache getInstance() {
+        return instance;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Remove the files left by a previous run, the index is not persisted.
+     * Only the files named like cached documents are deleted, the directory
+     * may be shared with other files.
+     */
+    private void sweep() {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to create cache directory {}", this.directory);
+            return;
+        }
+
+        File[] files = this.directory.listFiles(file -> file.isFile() && HASH.matcher(file.getName()).matches());
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to delete cached file {}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a document, from the cache if it is still valid, otherwise from
+     * the network. The returned document must be released once printed.
+     *
+     * @param url URL of the document.
+     * @param connectTimeout Connection timeout, in milliseconds.
+     * @param readTimeout Read timeout, in milliseconds.
+     * @param maxSize Maximum size of the document.
+     * @return The document.
+     * @throws IOException If the document cannot be fetched.
+     */
+    Document fetch(URL url, int connectTimeout, int readTimeout, long maxSize) throws IOException {
+        String key = url.toString();
+        Entry cached;
+
+        synchronized (this) {
+            cached = this.entries.get(key);
+            if (cached != null && cached.freshUntil > System.currentTimeMillis()) {
+                this.hits.incrementAndGet();
+                return cached.document.acquire();
+            }
+        }
+
+        long start = System.nanoTime();
+        URLConnection urlConn = url.openConnection();
+        urlConn.setConnectTimeout(connectTimeout);
+        urlConn.setReadTimeout(readTimeout);
+        if (cached != null) {
+            if (cached.etag != null) {
+                urlConn.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                urlConn.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        if (cached != null && urlConn instanceof HttpURLConnection
+                && ((HttpURLConnection) urlConn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            synchronized (this) {
+                // Still there, unless evicted during the request.
+                if (this.entries.get(key) == cached) {
+                    this.revalidations.incrementAndGet();
+                    cached.freshUntil = this.freshUntil(urlConn);
+                    return cached.document.acquire();
+                }
+            }
+            ((HttpURLConnection) urlConn).disconnect();
+            return this.fetch(url, connectTimeout, readTimeout, maxSize);
+        }
+
+        this.misses.incrementAndGet();
+        if (urlConn.getContentLengthLong() > maxSize) {
+            throw new IOException("Document too large (" + urlConn.getContentLengthLong() + " bytes)");
+        }
+
+        // Downloaded to the spool, so that the download is subject to its quota
+        CommonPrintServerSpool.SpoolFile temp = CommonPrintServerSpool.getInstance().create(".tmp");
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size = 0;
+
+            if (urlConn.getContentLengthLong() > 0) {
+                temp.reserve(urlConn.getContentLengthLong());
+            }
+            try (ReadableByteChannel input = Channels.newChannel(new DigestInputStream(urlConn.getInputStream(), digest));
+                 FileChannel output = FileChannel.open(temp.getFile().toPath(), StandardOpenOption.WRITE)) {
+                long count;
+                while ((count = output.transferFrom(input, size, Math.min(TRANSFER_SIZE, maxSize + 1 - size))) > 0) {
+                    size += count;
+                    temp.reserve(size);
+                    if (size > maxSize) {
+                        throw new IOException("Document too large (more than " + maxSize + " bytes)");
+                    }
+                }
+            }
+            CommonPrintServerMetrics.getInstance().download(System.nanoTime() - start, size);
+
+            return this.store(key, toHex(digest.digest()), temp.getFile(), size, urlConn);
+        } catch (NoSuchAlgorithmException | RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            // Moved to the cache once stored, deleted otherwise : the spool space is given back
+            temp.release();
+        }
+    }
+
+    /**
+     * Add a downloaded content to the cache.
+     *
+     * @param key URL of the document.
+     * @param hash Hash of the content.
+     * @param temp Downloaded content.
+     * @param size Size of the content.
+     * @param urlConn Connection the content was downloaded with.
+     * @return The cached document, acquired.
+     * @throws IOException If the content cannot be stored.
+     */
+    private synchronized Document store(String key, String hash, File temp, long size, URLConnection urlConn) throws IOException {
+        Document document = this.documents.get(hash);
+
+        if (document == null) {
+            File file = new File(this.directory, hash);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            document = new Document(hash, file, size, urlConn.getContentType());
+            this.documents.put(hash, document);
+            this.bytes += size;
+        } else {
+            // Same content already stored, for this URL or another one.
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        // Acquired first, so that replacing the entry of this URL by the
+        // same content does not delete it.
+        document.acquire();
+
+        String cacheControl = urlConn.getHeaderField("Cache-Control");
+        Entry previous = this.entries.remove(key);
+        if (previous != null) {
+            this.unlink(previous.document);
+        }
+
+        if (cacheControl == null || !cacheControl.toLowerCase().contains("no-store")) {
+            this.entries.put(key, new Entry(document, urlConn.getHeaderField("ETag"),
+                    urlConn.getHeaderField("Last-Modified"), this.freshUntil(urlConn)));
+            document.urls++;
+        }
+
+        this.evict();
+
+        return document;
+    }
+
+    /**
+     * Compute until when a response can be used without revalidation.
+     *
+     * @param urlConn Connection of the response.
+     * @return Timestamp, in milliseconds.
+     */
+    private long freshUntil(URLConnection urlConn) {
+        String cacheControl = urlConn.getHeaderField("Cache-Control");
+        long age = this.maxAge;
+
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        age = Long.parseLong(directive.substring(8)) * 1000;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+
+        return System.currentTimeMillis() + age;
+    }
+
+    /**
+     * Evict the least recently used URLs until the cache fits its budget.
+     * Documents being printed are kept.
+     */
+    private void evict() {
+        Iterator<Entry> iterator = this.entries.values().iterator();
+
+        while (this.bytes > this.maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.document.users == 0) {
+                iterator.remove();
+                this.evictions.incrementAndGet();
+                this.unlink(entry.document);
+            }
+        }
+    }
+
+    /**
+     * Remove a URL reference from a document.
+     *
+     * @param document Document no longer referenced by a URL.
+     */
+    private void unlink(Document document) {
+        document.urls--;
+        this.delete(document);
+    }
+
+    /**
+     * Release a document once printed.
+     *
+     * @param document Document returned by fetch.
+     */
+    synchronized void release(Document document) {
+        document.users--;
+        this.delete(document);
+        this.evict();
+    }
+
+    /**
+     * Delete a document which is neither cached nor used.
+     *
+     * @param document Document to delete.
+     */
+    private void delete(Document document) {
+        if (document.urls > 0 || document.users > 0) {
+            return;
+        }
+
+        this.documents.remove(document.hash);
+        this.bytes -= document.size;
+        if (!document.file.delete()) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to delete cached file {}", document.file);
+        }
+    }
+
+    /**
+     * Get the cache statistics.
+     *
+     * @return Cache statistics.
+     */
+    synchronized Stats getStats() {
+        return new Stats(this);
+    }
+
+    /**
+     * Convert bytes to an hexadecimal string.
+     *
+     * @param bytes Bytes to convert.
+     * @return Hexadecimal string.
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * A stored content.
+     */
+    static final class Document {
+
+        private final String hash;
+        private final File file;
+        private final long size;
+        private final String contentType;
+
+        /** Number of URLs cached with this content, and of jobs printing it. */
+        private int urls = 0;
+        private int users = 0;
+
+        private Document(String hash, File file, long size, String contentType) {
+            this.hash = hash;
+            this.file = file;
+            this.size = size;
+            this.contentType = contentType;
+        }
+
+        private Document acquire() {
+            this.users++;
+            return this;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+    }
+
+    /**
+     * A cached URL.
+     */
+    private static final class Entry {
+
+        private final Document document;
+        private final String etag;
+        private final String lastModified;
+        private long freshUntil;
+
+        private Entry(Document document, String etag, String lastModified, long freshUntil) {
+            this.document = document;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.freshUntil = freshUntil;
+        }
+
+    }
+
+    /**
+     * Cache statistics, JSON(ised) by the /cache route.
+     */
+    static final class Stats {
+
+        private final boolean enabled;
+        private final int urls;
+        private final int documents;
+        private final long bytes;
+        private final long maxBytes;
+        private final long hits;
+        private final long revalidations;
+        private final long misses;
+        private final long evictions;
+
+        private Stats(CommonPrintServerDocumentCache cache) {
+            this.enabled = cache.enabled;
+            this.urls = cache.entries.size();
+            this.documents = cache.documents.size();
+            this.bytes = cache.bytes;
+            this.maxBytes = cache.maxBytes;
+            this.hits = cache.hits.get();
+            this.revalidations = cache.revalidations.get();
+            this.misses = cache.misses.get();
+            this.evictions = cache.evictions.get();
+        }
+
+    }
+
+}
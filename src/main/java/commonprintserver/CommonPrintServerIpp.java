@@ -0,0 +1,458 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal IPP/1.1 client (RFC 8010 / RFC 8011), talking to a CUPS server or
+ * to an IPP printer over HTTP.
+ *
+ * Requests are posted through HttpURLConnection, whose keep-alive cache
+ * reuses the connection of the previous request once its response is fully
+ * read. Documents are streamed after the request attributes with the chunked
+ * transfer encoding, without being buffered.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerIpp {
+
+    /** Operations. */
+    static final int PRINT_JOB = 0x0002;
+    static final int CREATE_JOB = 0x0005;
+    static final int SEND_DOCUMENT = 0x0006;
+    static final int CANCEL_JOB = 0x0008;
+    static final int GET_JOBS = 0x000A;
+    static final int CUPS_GET_PRINTERS = 0x4002;
+
+    /** Delimiter tags. */
+    static final int OPERATION_ATTRIBUTES = 0x01;
+    static final int JOB_ATTRIBUTES = 0x02;
+    static final int END_OF_ATTRIBUTES = 0x03;
+    static final int PRINTER_ATTRIBUTES = 0x04;
+
+    /** Value tags. */
+    static final int INTEGER = 0x21;
+    static final int BOOLEAN = 0x22;
+    static final int ENUM = 0x23;
+    static final int TEXT_WITH_LANGUAGE = 0x35;
+    static final int NAME_WITH_LANGUAGE = 0x36;
+    static final int NAME = 0x42;
+    static final int KEYWORD = 0x44;
+    static final int URI = 0x45;
+    static final int CHARSET = 0x47;
+    static final int NATURAL_LANGUAGE = 0x48;
+    static final int MIME_MEDIA_TYPE = 0x49;
+
+    /** Size of the chunks of the streamed documents. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final AtomicInteger requestIds = new AtomicInteger();
+
+    private final URL url;
+    private final String printerUri;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /**
+     * @param uri URI of the printer (ipp://host:631/printers/name) or of the
+     * server (ipp://host:631), http and https are also accepted.
+     * @throws IllegalArgumentException If the URI is invalid.
+     */
+    CommonPrintServerIpp(String uri) {
+        this.url = toUrl(uri);
+        this.printerUri = uri;
+        this.connectTimeout = CommonPrintServerSettings.getInt("ipp.connectTimeout", 5000);
+        this.readTimeout = CommonPrintServerSettings.getInt("ipp.readTimeout", 60000);
+    }
+
+    /**
+     * Get the HTTP URL of an IPP URI : ipp is http on port 631, ipps is https
+     * on port 631.
+     *
+     * @param uri IPP URI.
+     * @return HTTP URL.
+     */
+    private static URL toUrl(String uri) {
+        try {
+            URI parsed = new URI(uri);
+            String scheme = parsed.getScheme() == null ? "" : parsed.getScheme().toLowerCase();
+            boolean secure = scheme.equals("ipps") || scheme.equals("https");
+            int port = parsed.getPort() > 0 ? parsed.getPort() : (scheme.startsWith("ipp") ? 631 : -1);
+
+            if (parsed.getHost() == null || !(scheme.startsWith("ipp") || scheme.startsWith("http"))) {
+                throw new IllegalArgumentException("Invalid IPP URI: " + uri);
+            }
+
+            return new URL(secure ? "https" : "http", parsed.getHost(), port, parsed.getRawPath() == null || parsed.getRawPath().isEmpty() ? "/" : parsed.getRawPath());
+        } catch (URISyntaxException | MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid IPP URI: " + uri, e);
+        }
+    }
+
+    /**
+     * @return URI of the printer or server.
+     */
+    String getUri() {
+        return this.printerUri;
+    }
+
+    /**
+     * Start a request, with the mandatory operation attributes.
+     *
+     * @param operation Operation ID.
+     * @param printer True to target the printer (printer-uri attribute).
+     * @return Request, to complete with the operation attributes.
+     */
+    Request request(int operation, boolean printer) {
+        Request request = new Request(operation);
+
+        request.attribute(CHARSET, "attributes-charset", "utf-8");
+        request.attribute(NATURAL_LANGUAGE, "attributes-natural-language", "en");
+        if (printer) {
+            request.attribute(URI, "printer-uri", this.printerUri);
+        }
+
+        return request;
+    }
+
+    /**
+     * Send a request and read its response.
+     *
+     * @param request Request.
+     * @param document Document sent after the request, null if none.
+     * @return Response, successful.
+     * @throws IOException If the server cannot be reached or rejects the request.
+     */
+    Response send(Request request, InputStream document) throws IOException {
+        byte[] header = request.toByteArray();
+        HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+
+        connection.setConnectTimeout(this.connectTimeout);
+        connection.setReadTimeout(this.readTimeout);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/ipp");
+        connection.setDoOutput(true);
+        if (document == null) {
+            connection.setFixedLengthStreamingMode(header.length);
+        } else {
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(header);
+            if (document != null) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = document.read(buffer)) > 0) {
+                    output.write(buffer, 0, read);
+                }
+            }
+        }
+
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            // Read the error body, so that the connection can be reused.
+            try (InputStream error = connection.getErrorStream()) {
+                if (error != null) {
+                    while (error.read(header) > 0) {
+                        // Discard.
+                    }
+                }
+            }
+            throw new IOException("IPP request failed: HTTP " + connection.getResponseCode() + " " + connection.getResponseMessage());
+        }
+
+        Response response;
+        try (InputStream input = connection.getInputStream()) {
+            response = new Response(new DataInputStream(new BufferedInputStream(input)));
+        }
+        if (!response.isSuccessful()) {
+            throw new IOException("IPP request failed: " + response.getStatusMessage());
+        }
+
+        return response;
+    }
+
+    /**
+     * IPP request attributes, encoded as they are added.
+     */
+    static final class Request {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        private final DataOutputStream output = new DataOutputStream(this.bytes);
+
+        Request(int operation) {
+            try {
+                this.output.writeShort(0x0101);
+                this.output.writeShort(operation);
+                this.output.writeInt(requestIds.incrementAndGet());
+                this.output.writeByte(OPERATION_ATTRIBUTES);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Add a string attribute.
+         *
+         * @param tag Value tag, ex: KEYWORD.
+         * @param name Attribute name.
+         * @param values Attribute values.
+         * @return This request.
+         */
+        Request attribute(int tag, String name, String... values) {
+            for (int i = 0; i < values.length; i++) {
+                this.value(tag, i == 0 ? name : "", values[i].getBytes(StandardCharsets.UTF_8));
+            }
+
+            return this;
+        }
+
+        /**
+         * Add an integer attribute.
+         *
+         * @param name Attribute name.
+         * @param value Attribute value.
+         * @return This request.
+         */
+        Request integer(String name, int value) {
+            return this.value(INTEGER, name, ByteBuffer.allocate(4).putInt(value).array());
+        }
+
+        /**
+         * Add a boolean attribute.
+         *
+         * @param name Attribute name.
+         * @param value Attribute value.
+         * @return This request.
+         */
+        Request bool(String name, boolean value) {
+            return this.value(BOOLEAN, name, new byte[]{(byte) (value ? 1 : 0)});
+        }
+
+        private Request value(int tag, String name, byte[] value) {
+            byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+
+            try {
+                this.output.writeByte(tag);
+                this.output.writeShort(encodedName.length);
+                this.output.write(encodedName);
+                this.output.writeShort(value.length);
+                this.output.write(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return this;
+        }
+
+        /**
+         * @return Encoded request, without the document.
+         */
+        byte[] toByteArray() {
+            byte[] encoded = this.bytes.toByteArray();
+            byte[] result = new byte[encoded.length + 1];
+
+            System.arraycopy(encoded, 0, result, 0, encoded.length);
+            result[encoded.length] = END_OF_ATTRIBUTES;
+
+            return result;
+        }
+
+    }
+
+    /**
+     * Decoded IPP response. Collection values are flattened into their
+     * attribute, out-of-band values (unknown, no-value) are dropped.
+     */
+    static final class Response {
+
+        private final int status;
+        private final List<Group> groups = new ArrayList<>();
+
+        Response(DataInputStream input) throws IOException {
+            input.readUnsignedShort();
+            this.status = input.readUnsignedShort();
+            input.readInt();
+
+            Group group = null;
+            String name = "";
+            int tag;
+            while ((tag = input.read()) >= 0 && tag != END_OF_ATTRIBUTES) {
+                if (tag < 0x10) {
+                    group = new Group(tag);
+                    this.groups.add(group);
+                    continue;
+                }
+
+                byte[] encodedName = new byte[input.readUnsignedShort()];
+                input.readFully(encodedName);
+                byte[] value = new byte[input.readUnsignedShort()];
+                input.readFully(value);
+                if (encodedName.length > 0) {
+                    name = new String(encodedName, StandardCharsets.UTF_8);
+                }
+
+                Object decoded = decode(tag, value);
+                if (group != null && decoded != null) {
+                    group.add(name, decoded);
+                }
+            }
+        }
+
+        private static Object decode(int tag, byte[] value) {
+            if (tag < 0x20) {
+                return null;
+            }
+
+            switch (tag) {
+                case INTEGER:
+                case ENUM:
+                    return value.length == 4 ? ByteBuffer.wrap(value).getInt() : null;
+                case BOOLEAN:
+                    return value.length == 1 && value[0] != 0;
+                case TEXT_WITH_LANGUAGE:
+                case NAME_WITH_LANGUAGE:
+                    // Language then text, each prefixed by its length
+                    try {
+                        ByteBuffer buffer = ByteBuffer.wrap(value);
+                        buffer.position(2 + buffer.getShort(0));
+                        int length = buffer.getShort();
+                        return new String(value, buffer.position(), length, StandardCharsets.UTF_8);
+                    } catch (RuntimeException e) {
+                        return null;
+                    }
+                default:
+                    return tag >= 0x40 ? new String(value, StandardCharsets.UTF_8) : null;
+            }
+        }
+
+        /**
+         * @return True if the status code is a successful one.
+         */
+        boolean isSuccessful() {
+            return this.status < 0x0100;
+        }
+
+        /**
+         * @return Status message of the server, or the status code.
+         */
+        String getStatusMessage() {
+            String message = null;
+
+            for (Group group : this.getGroups(OPERATION_ATTRIBUTES)) {
+                message = group.getString("status-message");
+            }
+
+            return String.format("0x%04x%s", this.status, message == null ? "" : " " + message);
+        }
+
+        /**
+         * Get the attribute groups of a kind, ex: one job attributes group
+         * per job.
+         *
+         * @param tag Group tag.
+         * @return Groups, in the order of the response.
+         */
+        List<Group> getGroups(int tag) {
+            List<Group> result = new ArrayList<>();
+
+            for (Group group : this.groups) {
+                if (group.tag == tag) {
+                    result.add(group);
+                }
+            }
+
+            return result;
+        }
+
+    }
+
+    /**
+     * Attributes of a group.
+     */
+    static final class Group {
+
+        private final int tag;
+        private final Map<String, List<Object>> attributes = new LinkedHashMap<>();
+
+        Group(int tag) {
+            this.tag = tag;
+        }
+
+        private void add(String name, Object value) {
+            this.attributes.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value);
+        }
+
+        /**
+         * @param name Attribute name.
+         * @return Attribute values, empty if not set.
+         */
+        List<Object> get(String name) {
+            return this.attributes.getOrDefault(name, Collections.emptyList());
+        }
+
+        /**
+         * @param name Attribute name.
+         * @return First value of a string attribute, null if not set.
+         */
+        String getString(String name) {
+            List<Object> values = this.get(name);
+
+            return values.isEmpty() ? null : values.get(0).toString();
+        }
+
+        /**
+         * @param name Attribute name.
+         * @param def Default value.
+         * @return First value of an integer attribute, def if not set.
+         */
+        int getInt(String name, int def) {
+            List<Object> values = this.get(name);
+
+            return !values.isEmpty() && values.get(0) instanceof Integer ? (Integer) values.get(0) : def;
+        }
+
+    }
+
+}
@@ -0,0 +1,306 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.print.Doc;
+import javax.print.DocFlavor;
+import javax.print.PrintException;
+import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.attribute.standard.JobName;
+
+/**
+ * Printer driven through IPP, straight to a CUPS queue or an IPP printer,
+ * without the JDK print services.
+ *
+ * IPP printers are declared with the printers.ipp setting
+ * (ex: Office=ipp://cups:631/printers/Office), or discovered on the CUPS
+ * server of the ipp.server setting, every ipp.refreshInterval seconds.
+ * Documents are streamed with Print-Job, or with Create-Job then Send-Document
+ * when ipp.createJob is set : the job then exists before the upload, and is
+ * cancelled if the upload fails.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerIppPrinter extends CommonPrintServerDirectPrinter {
+
+    /** Job states, from 3 (pending) to 9 (completed). */
+    private static final String[] JOB_STATES = {
+        "pending", "pending-held", "processing", "processing-stopped", "canceled", "aborted", "completed"
+    };
+
+    /** Job attributes returned by Get-Jobs. */
+    private static final String[] JOB_ATTRIBUTES = {
+        "job-id", "job-name", "job-state", "job-state-reasons", "job-originating-user-name"
+    };
+
+    /** Printers of the last search, and its time. */
+    private static Map<String, CommonPrintServerIppPrinter> cached = null;
+    private static long searched;
+
+    private final CommonPrintServerIpp ipp;
+    private final boolean createJob;
+
+    CommonPrintServerIppPrinter(String name, String uri) {
+        super(name, DocFlavor.INPUT_STREAM.AUTOSENSE, DocFlavor.BYTE_ARRAY.AUTOSENSE,
+                DocFlavor.INPUT_STREAM.PDF, DocFlavor.INPUT_STREAM.POSTSCRIPT,
+                DocFlavor.INPUT_STREAM.PNG, DocFlavor.INPUT_STREAM.JPEG);
+        this.ipp = new CommonPrintServerIpp(uri);
+        this.createJob = CommonPrintServerSettings.getBoolean("ipp.createJob", false);
+    }
+
+    /**
+     * Get the printers of the printers.ipp setting, and the queues of the CUPS
+     * server of the ipp.server setting. They are searched again once
+     * ipp.refreshInterval seconds (300 by default) elapsed, keeping the
+     * printers whose URI did not change.
+     *
+     * @return IPP printers by name, empty if none is declared.
+     */
+    static synchronized Map<String, CommonPrintServerIppPrinter> configured() {
+        long interval = TimeUnit.SECONDS.toNanos(CommonPrintServerSettings.getLong("ipp.refreshInterval", 300));
+
+        if (cached == null || System.nanoTime() - searched >= interval) {
+            Map<String, CommonPrintServerIppPrinter> previous = cached == null ? Collections.emptyMap() : cached;
+            Map<String, CommonPrintServerIppPrinter> found = new LinkedHashMap<>();
+
+            for (CommonPrintServerIppPrinter printer : search().values()) {
+                CommonPrintServerIppPrinter known = previous.get(printer.getName());
+                found.put(printer.getName(), known != null && known.getLocation().equals(printer.getLocation()) ? known : printer);
+            }
+            cached = Collections.unmodifiableMap(found);
+            searched = System.nanoTime();
+        }
+
+        return cached;
+    }
+
+    /**
+     * Search for the IPP printers.
+     *
+     * @return IPP printers by name, empty if none is declared.
+     */
+    private static Map<String, CommonPrintServerIppPrinter> search() {
+        Map<String, CommonPrintServerIppPrinter> printers = new LinkedHashMap<>();
+        String server = CommonPrintServerSettings.get("ipp.server", null);
+
+        if (server != null) {
+            try {
+                printers.putAll(discover(server));
+            } catch (IOException | IllegalArgumentException e) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to list the printers of {}: {}", server, e.getMessage());
+            }
+        }
+
+        for (String entry : CommonPrintServerSettings.get("printers.ipp", "").split(",")) {
+            int separator = entry.indexOf('=');
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            if (separator <= 0) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Invalid IPP printer {}, expected name=uri", entry.trim());
+                continue;
+            }
+
+            String name = entry.substring(0, separator).trim();
+            try {
+                printers.put(name, new CommonPrintServerIppPrinter(name, entry.substring(separator + 1).trim()));
+            } catch (IllegalArgumentException e) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Invalid IPP printer {}: {}", entry.trim(), e.getMessage());
+            }
+        }
+
+        return printers;
+    }
+
+    /**
+     * List the queues of a CUPS server (CUPS-Get-Printers).
+     *
+     * @param server URI of the server, ex: ipp://localhost:631.
+     * @return IPP printers by name.
+     * @throws IOException If the server cannot be reached.
+     */
+    private static Map<String, CommonPrintServerIppPrinter> discover(String server) throws IOException {
+        CommonPrintServerIpp cups = new CommonPrintServerIpp(server);
+        String base = server.replaceAll("/+$", "");
+        Map<String, CommonPrintServerIppPrinter> printers = new LinkedHashMap<>();
+        CommonPrintServerIpp.Response response = cups.send(cups.request(CommonPrintServerIpp.CUPS_GET_PRINTERS, false)
+                .attribute(CommonPrintServerIpp.KEYWORD, "requested-attributes", "printer-name"), null);
+
+        for (CommonPrintServerIpp.Group group : response.getGroups(CommonPrintServerIpp.PRINTER_ATTRIBUTES)) {
+            String name = group.getString("printer-name");
+            if (name != null) {
+                // The queue URI as seen from here, the server may advertise another host name
+                printers.put(name, new CommonPrintServerIppPrinter(name, base + "/printers/" + encode(name)));
+            }
+        }
+
+        return printers;
+    }
+
+    /**
+     * Percent-encode a queue name, as a segment of the printer URI.
+     *
+     * @param name Queue name.
+     * @return Encoded name.
+     */
+    private static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    String getLocation() {
+        return this.ipp.getUri();
+    }
+
+    @Override
+    void print(Doc doc, PrintRequestAttributeSet attributes) throws PrintException {
+        JobName jobName = attributes == null ? null : (JobName) attributes.get(JobName.class);
+        String name = jobName == null ? "Common-PrintServer" : jobName.getValue();
+        String format = doc.getDocFlavor().getMimeType();
+
+        try (InputStream document = doc.getStreamForBytes()) {
+            CommonPrintServerIpp.Response response;
+
+            if (this.createJob) {
+                List<CommonPrintServerIpp.Group> created = this.ipp.send(this.request(CommonPrintServerIpp.CREATE_JOB)
+                        .attribute(CommonPrintServerIpp.NAME, "job-name", name), null)
+                        .getGroups(CommonPrintServerIpp.JOB_ATTRIBUTES);
+                int jobId = created.isEmpty() ? -1 : created.get(0).getInt("job-id", -1);
+                if (jobId <= 0) {
+                    throw new PrintException("The printer returned no job-id for Create-Job");
+                }
+                try {
+                    response = this.ipp.send(this.request(CommonPrintServerIpp.SEND_DOCUMENT)
+                            .integer("job-id", jobId)
+                            .attribute(CommonPrintServerIpp.MIME_MEDIA_TYPE, "document-format", format)
+                            .bool("last-document", true), document);
+                } catch (IOException e) {
+                    this.cancel(jobId);
+                    throw e;
+                }
+            } else {
+                response = this.ipp.send(this.request(CommonPrintServerIpp.PRINT_JOB)
+                        .attribute(CommonPrintServerIpp.NAME, "job-name", name)
+                        .attribute(CommonPrintServerIpp.MIME_MEDIA_TYPE, "document-format", format), document);
+            }
+
+            for (CommonPrintServerIpp.Group job : response.getGroups(CommonPrintServerIpp.JOB_ATTRIBUTES)) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "    > IPP job {} ({})", job.getInt("job-id", -1), state(job.getInt("job-state", 0)));
+            }
+        } catch (IOException e) {
+            throw new PrintException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the jobs of the printer (Get-Jobs), from all users.
+     *
+     * @param completed True for the completed jobs, false for the pending ones.
+     * @return Jobs, as returned by the printer.
+     * @throws IOException If the printer cannot be reached.
+     */
+    List<Job> getJobs(boolean completed) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        CommonPrintServerIpp.Response response = this.ipp.send(this.request(CommonPrintServerIpp.GET_JOBS)
+                .attribute(CommonPrintServerIpp.KEYWORD, "which-jobs", completed ? "completed" : "not-completed")
+                .attribute(CommonPrintServerIpp.KEYWORD, "requested-attributes", JOB_ATTRIBUTES), null);
+
+        for (CommonPrintServerIpp.Group group : response.getGroups(CommonPrintServerIpp.JOB_ATTRIBUTES)) {
+            jobs.add(new Job(group));
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Cancel a job whose document could not be sent.
+     *
+     * @param jobId ID of the job.
+     */
+    private void cancel(int jobId) {
+        try {
+            this.ipp.send(this.request(CommonPrintServerIpp.CANCEL_JOB).integer("job-id", jobId), null);
+        } catch (IOException e) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to cancel IPP job {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    private CommonPrintServerIpp.Request request(int operation) {
+        return this.ipp.request(operation, true)
+                .attribute(CommonPrintServerIpp.NAME, "requesting-user-name", System.getProperty("user.name", "Common-PrintServer"));
+    }
+
+    private static String state(int state) {
+        return state >= 3 && state <= 9 ? JOB_STATES[state - 3] : "unknown";
+    }
+
+    @Override
+    public String toString() {
+        return "IPP printer : " + this.getName() + " (" + this.getLocation() + ")";
+    }
+
+    /**
+     * Job of the printer.
+     */
+    static final class Job {
+
+        private final int id;
+        private final String name;
+        private final String user;
+        private final String state;
+        private final List<String> stateReasons = new ArrayList<>();
+
+        Job(CommonPrintServerIpp.Group group) {
+            this.id = group.getInt("job-id", -1);
+            this.name = group.getString("job-name");
+            this.user = group.getString("job-originating-user-name");
+            this.state = state(group.getInt("job-state", 0));
+            group.get("job-state-reasons").forEach(reason -> this.stateReasons.add(reason.toString()));
+        }
+
+        int getId() {
+            return id;
+        }
+
+        String getState() {
+            return state;
+        }
+
+    }
+
+}
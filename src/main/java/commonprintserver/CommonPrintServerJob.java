@@ -0,0 +1,534 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import com.google.gson.annotations.SerializedName;
+
+import javax.print.PrintService;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A print job submitted to the job queue.
+ *
+ * Once JSON(ised), only the job status and timings are exposed, the payload
+ * is never sent back to the client. The payload is dropped once the job is
+ * over, so the history only keeps the metadata.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerJob {
+
+    /** Charset of the raw code given as text, when its request names none. */
+    static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+
+    /** Kind of payload held by the job. */
+    enum Type {
+        @SerializedName("raw") RAW,
+        @SerializedName("url") URL,
+        @SerializedName("batch") BATCH,
+        @SerializedName("stream") STREAM,
+        @SerializedName("file") FILE
+    }
+
+    /** Job lifecycle. */
+    enum Status {
+        @SerializedName("queued") QUEUED,
+        @SerializedName("spooling") SPOOLING,
+        @SerializedName("done") DONE,
+        @SerializedName("failed") FAILED
+    }
+
+    private final String id;
+    private final Type type;
+    private final String printer;
+    private volatile Status status = Status.QUEUED;
+    private volatile String error = "";
+
+    /** Wall clock timestamps (epoch milliseconds). */
+    private final long submittedAt;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    /** Time spent waiting in the queue, then spooling (milliseconds). */
+    private volatile long queuedMillis;
+    private volatile long spoolMillis;
+
+    /** Bytes allocated while spooling. */
+    private volatile long allocatedBytes = -1;
+
+    /** Stages the job went through, in order. */
+    private final List<Stage> timeline = new CopyOnWriteArrayList<>();
+
+    /** Memory policy used to load a PDF, if any. */
+    private volatile String pdfMemory;
+
+    /** Items of a batch job, null otherwise. */
+    private final List<Item> items;
+
+    private final transient PrintService printService;
+    private transient String payload;
+    private transient byte[] data;
+    private transient InputStream stream;
+    private transient CommonPrintServerSpool.SpoolFile document;
+    private final transient String contentType;
+    private final transient long submittedNanos;
+    private transient long startedNanos;
+    private transient long stageNanos;
+    private final transient CountDownLatch finished = new CountDownLatch(1);
+
+    /** Set by the first of the worker spooling the job and of the request abandoning it. */
+    private final transient AtomicBoolean claimed = new AtomicBoolean();
+
+    /** Set once the resources of the job are released. */
+    private final transient AtomicBoolean discarded = new AtomicBoolean();
+
+    CommonPrintServerJob(Type type, PrintService printService, String payload) {
+        this.id = UUID.randomUUID().toString();
+        this.type = type;
+        this.printService = printService;
+        this.printer = printService.getName();
+        this.payload = payload;
+        this.data = null;
+        this.stream = null;
+        this.document = null;
+        this.contentType = null;
+        this.items = null;
+        this.submittedAt = System.currentTimeMillis();
+        this.submittedNanos = System.nanoTime();
+        this.stageNanos = this.submittedNanos;
+    }
+
+    /**
+     * Create a raw job from already encoded raw code.
+     *
+     * @param printService Printer to print on.
+     * @param data Raw code to send to printer.
+     */
+    CommonPrintServerJob(PrintService printService, byte[] data) {
+        this.id = UUID.randomUUID().toString();
+        this.type = Type.RAW;
+        this.printService = printService;
+        this.printer = printService.getName();
+        this.payload = null;
+        this.data = data;
+        this.stream = null;
+        this.document = null;
+        this.contentType = null;
+        this.items = null;
+        this.submittedAt = System.currentTimeMillis();
+        this.submittedNanos = System.nanoTime();
+        this.stageNanos = this.submittedNanos;
+    }
+
+    /**
+     * Create a batch job, whose items are spooled as a single print job.
+     *
+     * @param printService Printer to print on.
+     * @param items Items of the batch, rejected items are not printed.
+     */
+    CommonPrintServerJob(PrintService printService, List<Item> items) {
+        this.id = UUID.randomUUID().toString();
+        this.type = Type.BATCH;
+        this.printService = printService;
+        this.printer = printService.getName();
+        this.payload = null;
+        this.data = null;
+        this.stream = null;
+        this.document = null;
+        this.contentType = null;
+        this.items = items;
+        this.submittedAt = System.currentTimeMillis();
+        this.submittedNanos = System.nanoTime();
+        this.stageNanos = this.submittedNanos;
+    }
+
+    /**
+     * Create a stream job, whose raw code is read from the request body while
+     * it is sent to the printer.
+     *
+     * @param printService Printer to print on.
+     * @param stream Raw code to send to printer, read once.
+     */
+    CommonPrintServerJob(PrintService printService, InputStream stream) {
+        this.id = UUID.randomUUID().toString();
+        this.type = Type.STREAM;
+        this.printService = printService;
+        this.printer = printService.getName();
+        this.payload = null;
+        this.data = null;
+        this.stream = stream;
+        this.document = null;
+        this.contentType = null;
+        this.items = null;
+        this.submittedAt = System.currentTimeMillis();
+        this.submittedNanos = System.nanoTime();
+        this.stageNanos = this.submittedNanos;
+    }
+
+    /**
+     * Create a file job, whose document was uploaded to the spool.
+     *
+     * @param printService Printer to print on.
+     * @param document Spool file of the document, released once printed.
+     * @param filename Name of the document, used as print job name.
+     * @param contentType Document content type : PDF, PNG or JPEG.
+     */
+    CommonPrintServerJob(PrintService printService, CommonPrintServerSpool.SpoolFile document, String filename, String contentType) {
+        this.id = UUID.randomUUID().toString();
+        this.type = Type.FILE;
+        this.printService = printService;
+        this.printer = printService.getName();
+        this.payload = filename;
+        this.data = null;
+        this.stream = null;
+        this.document = document;
+        this.contentType = contentType;
+        this.items = null;
+        this.submittedAt = System.currentTimeMillis();
+        this.submittedNanos = System.nanoTime();
+        this.stageNanos = this.submittedNanos;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getPrinter() {
+        return printer;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    Status getStatus() {
+        return status;
+    }
+
+    String getError() {
+        return error;
+    }
+
+    long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    PrintService getPrintService() {
+        return printService;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Get the raw code to send to the printer.
+     *
+     * @return Raw code bytes.
+     */
+    byte[] getRawCode() {
+        return data != null ? data : encode(payload, DEFAULT_CHARSET);
+    }
+
+    /**
+     * Encode raw code given as text. The charset must be the one the text was
+     * decoded with, so that the printer gets the bytes the client sent, like
+     * for a single raw job.
+     *
+     * @param rawCode Raw code.
+     * @param charset Charset of the request holding the raw code.
+     * @return Raw code bytes.
+     */
+    static byte[] encode(String rawCode, Charset charset) {
+        return rawCode.getBytes(charset);
+    }
+
+    /**
+     * Get the approximate size of the payload, without encoding it.
+     *
+     * @return Payload size.
+     */
+    int getPayloadSize() {
+        return data != null ? data.length : payload.length();
+    }
+
+    List<Item> getItems() {
+        return items;
+    }
+
+    InputStream getStream() {
+        return stream;
+    }
+
+    CommonPrintServerSpool.SpoolFile getDocument() {
+        return document;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Release what the job holds, once spooled, failed or rejected : the
+     * spool file of the document and the payload. Only the first call
+     * releases.
+     */
+    void discard() {
+        if (!this.discarded.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (this.document != null) {
+            this.document.release();
+        }
+        this.payload = null;
+        this.data = null;
+        this.stream = null;
+        this.document = null;
+
+        if (this.items != null) {
+            for (Item item : this.items) {
+                item.data = null;
+            }
+        }
+    }
+
+    /**
+     * Claim the job, either to spool it or to abandon it. A stream job is
+     * abandoned when its request stops waiting before the job started, its
+     * stream is then closed and must not be read.
+     *
+     * @return True for the first caller only.
+     */
+    boolean claim() {
+        return this.claimed.compareAndSet(false, true);
+    }
+
+    List<Stage> getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Record the time spent receiving and parsing the request, before the
+     * job was created.
+     *
+     * @param requestNanos Time the request was received (System.nanoTime).
+     */
+    void received(long requestNanos) {
+        this.timeline.add(0, new Stage("parse", this.submittedNanos - requestNanos));
+    }
+
+    /**
+     * Record the end of a stage, which started at the end of the previous
+     * one.
+     *
+     * @param name Stage name.
+     */
+    void stage(String name) {
+        long now = System.nanoTime();
+
+        this.timeline.add(new Stage(name, now - this.stageNanos));
+        this.stageNanos = now;
+    }
+
+    /**
+     * Get the timeline in the Server-Timing header format.
+     *
+     * @return Server-Timing header value.
+     */
+    String getServerTiming() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Stage stage : this.timeline) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(stage.name).append(";dur=").append(stage.millis);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Mark the job as being sent to the printer.
+     */
+    void started() {
+        this.stage("queue");
+        this.startedNanos = this.stageNanos;
+        this.startedAt = System.currentTimeMillis();
+        this.queuedMillis = TimeUnit.NANOSECONDS.toMillis(this.startedNanos - this.submittedNanos);
+        this.status = Status.SPOOLING;
+    }
+
+    /**
+     * Record the memory used by the job.
+     *
+     * @param allocatedBytes Bytes allocated while spooling.
+     */
+    void memory(long allocatedBytes) {
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /**
+     * Record the memory policy used to load the PDF.
+     *
+     * @param pdfMemory Memory policy.
+     */
+    void setPdfMemory(String pdfMemory) {
+        this.pdfMemory = pdfMemory;
+    }
+
+    /**
+     * Mark the job as finished, and release what it holds.
+     *
+     * @param response Print service response, OK or NOK for error message.
+     */
+    void finished(String response) {
+        this.discard();
+        this.spoolMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startedNanos);
+        this.finishedAt = System.currentTimeMillis();
+
+        if (response.startsWith("NOK|")) {
+            this.error = response.substring(4);
+            this.status = Status.FAILED;
+        } else {
+            this.status = Status.DONE;
+        }
+
+        if (this.items != null) {
+            for (Item item : this.items) {
+                if (item.status == Status.QUEUED) {
+                    item.error = this.error;
+                    item.status = this.status;
+                }
+            }
+        }
+
+        this.finished.countDown();
+    }
+
+    /**
+     * Check if the job is done or failed.
+     *
+     * @return True if the job is over, false otherwise.
+     */
+    boolean isFinished() {
+        return this.finished.getCount() == 0;
+    }
+
+    /**
+     * Wait for the job to be over.
+     *
+     * @param timeout Maximum time to wait, in milliseconds.
+     * @return True if the job is over, false if the timeout elapsed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean await(long timeout) throws InterruptedException {
+        return this.finished.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A stage of the job, with its duration.
+     */
+    static final class Stage {
+
+        private final String name;
+        private final double millis;
+
+        private Stage(String name, long nanos) {
+            this.name = name;
+            this.millis = Math.round(nanos / 1000.0) / 1000.0;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        double getMillis() {
+            return millis;
+        }
+
+    }
+
+    /**
+     * An item of a batch job.
+     */
+    static final class Item {
+
+        private final int index;
+        private final int bytes;
+        private volatile Status status;
+        private volatile String error;
+        private transient byte[] data;
+        private final transient boolean rejected;
+
+        /**
+         * Create an item to print.
+         *
+         * @param index Position of the item in the batch.
+         * @param data Raw code to print.
+         */
+        Item(int index, byte[] data) {
+            this.index = index;
+            this.bytes = data.length;
+            this.status = Status.QUEUED;
+            this.error = "";
+            this.data = data;
+            this.rejected = false;
+        }
+
+        /**
+         * Create an item which will not be printed.
+         *
+         * @param index Position of the item in the batch.
+         * @param error Reason of the rejection.
+         */
+        Item(int index, String error) {
+            this.index = index;
+            this.bytes = 0;
+            this.status = Status.FAILED;
+            this.error = error;
+            this.data = null;
+            this.rejected = true;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+
+        boolean isRejected() {
+            return rejected;
+        }
+
+    }
+
+}
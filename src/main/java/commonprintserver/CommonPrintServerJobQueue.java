@@ -0,0 +1,233 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process print job queue. Jobs are accepted immediately and dispatched to
+ * the worker of their printer, so that HTTP threads never wait for the
+ * printer. Each printer has its own worker: jobs for different printers are
+ * spooled in parallel, jobs for the same printer keep their order.
+ *
+ * Finished jobs are kept in a bounded history so their status can be read
+ * back through the API.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerJobQueue {
+
+    /** Used to handle a single instance of this class. */
+    private static final CommonPrintServerJobQueue instance = new CommonPrintServerJobQueue();
+
+    /** Printer workers, by printer name. */
+    private final Map<String, CommonPrintServerPrinterWorker> workers = new ConcurrentHashMap<>();
+    private final int maxQueued;
+
+    /** All known jobs, by ID. */
+    private final Map<String, CommonPrintServerJob> jobs = new ConcurrentHashMap<>();
+
+    /** IDs of the finished jobs, oldest first. */
+    private final Queue<String> history = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger historySize = new AtomicInteger();
+    private final int maxHistory;
+
+    private CommonPrintServerJobQueue() {
+        this.maxQueued = Math.max(1, CommonPrintServerSettings.getInt("jobs.maxQueued", 10000));
+        this.maxHistory = Math.max(0, CommonPrintServerSettings.getInt("jobs.history", 1000));
+    }
+
+    /**
+     * Return the unique class instance.
+     *
+     * @return The class instance
+     */
+    static CommonPrintServerJobQueue getInstance() {
+        return instance;
+    }
+
+    /**
+     * Queue a job for printing.
+     *
+     * @param job Job to print.
+     * @return True if queued, false if the printer queue is full.
+     */
+    boolean submit(CommonPrintServerJob job) {
+        String printer = job.getPrintService().getName();
+        CommonPrintServerPrinterWorker worker = this.workers.computeIfAbsent(printer,
+                name -> new CommonPrintServerPrinterWorker(name, this.maxQueued, this::run, this::finish));
+
+        this.jobs.put(job.getId(), job);
+        if (!worker.offer(job)) {
+            this.jobs.remove(job.getId());
+            job.discard();
+            CommonPrintServerMetrics.getInstance().job(printer, job.getType(), "rejected");
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Job rejected, queue of {} is full.", printer);
+            return false;
+        }
+
+        CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, " Job {} queued ({})", job.getId(), printer);
+        return true;
+    }
+
+    /**
+     * Spool jobs, then move them to the history. Several jobs are only
+     * given at once when raw jobs were coalesced, they are then spooled as
+     * a single print job.
+     *
+     * @param group Jobs to print.
+     */
+    private void run(List<CommonPrintServerJob> group) {
+        CommonPrintServerJob first = group.get(0);
+        String response;
+        long allocated = CommonPrintServerMemory.allocatedBytes();
+
+        group.forEach(CommonPrintServerJob::started);
+        try {
+            if (first.getType() == CommonPrintServerJob.Type.STREAM && !first.claim()) {
+                response = "NOK|Request closed before the job started";
+            } else if (group.size() > 1) {
+                response = CommonPrintServerPrintServices.printRaw(group);
+            } else if (first.getType() == CommonPrintServerJob.Type.URL) {
+                response = CommonPrintServerPrintServices.printFileByURL(first);
+            } else if (first.getType() == CommonPrintServerJob.Type.BATCH) {
+                response = CommonPrintServerPrintServices.printBatch(first);
+            } else if (first.getType() == CommonPrintServerJob.Type.STREAM) {
+                response = CommonPrintServerPrintServices.printStream(first);
+            } else if (first.getType() == CommonPrintServerJob.Type.FILE) {
+                response = CommonPrintServerPrintServices.printFile(first);
+            } else {
+                response = CommonPrintServerPrintServices.printRaw(first);
+            }
+        } catch (Throwable e) {
+            // Errors too (out of memory loading a PDF...), so that the jobs are always finished
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.ERROR, "Job {} failed: {}", first.getId(), e);
+            response = "NOK|" + (e instanceof RuntimeException ? e.getMessage() : e.toString());
+        }
+
+        long allocatedBytes = allocated < 0 ? -1 : CommonPrintServerMemory.allocatedBytes() - allocated;
+        for (CommonPrintServerJob job : group) {
+            job.memory(allocatedBytes);
+        }
+        this.finish(group, response);
+    }
+
+    /**
+     * Finish jobs, record them, then move them to the history. Also used by
+     * the workers for the jobs of a spool which failed.
+     *
+     * @param group Jobs to finish.
+     * @param response Print service response, OK or NOK for error message.
+     */
+    private void finish(List<CommonPrintServerJob> group, String response) {
+        for (CommonPrintServerJob job : group) {
+            job.finished(response);
+            this.archive(job);
+            CommonPrintServerMetrics.getInstance().job(job);
+            CommonPrintServerJobTracer.getInstance().record(job);
+
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, " Job {} {} {}", job.getId(), job.getStatus(), job.getError());
+        }
+    }
+
+    /**
+     * Add a finished job to the history, dropping the oldest ones.
+     *
+     * @param job Finished job.
+     */
+    private void archive(CommonPrintServerJob job) {
+        this.history.add(job.getId());
+        if (this.historySize.incrementAndGet() > this.maxHistory) {
+            String oldest = this.history.poll();
+            if (oldest != null) {
+                this.historySize.decrementAndGet();
+                this.jobs.remove(oldest);
+            }
+        }
+    }
+
+    /**
+     * Get the statistics of the printer workers.
+     *
+     * @return List of worker statistics, sorted by printer name.
+     */
+    List<CommonPrintServerPrinterWorker.Stats> getWorkers() {
+        List<CommonPrintServerPrinterWorker.Stats> list = new ArrayList<>(this.workers.size());
+
+        new TreeMap<>(this.workers).values().forEach(worker -> list.add(worker.getStats()));
+
+        return list;
+    }
+
+    /**
+     * Get the number of jobs waiting to be spooled, by printer.
+     *
+     * @return Queue depths, sorted by printer name.
+     */
+    Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+
+        this.workers.forEach((printer, worker) -> depths.put(printer, worker.getQueueDepth()));
+
+        return depths;
+    }
+
+    /**
+     * Get a job by its ID.
+     *
+     * @param id Job ID.
+     * @return The job, or null if unknown.
+     */
+    CommonPrintServerJob getJob(String id) {
+        return this.jobs.get(id);
+    }
+
+    /**
+     * Get the known jobs, most recent first.
+     *
+     * @param status Only return jobs in this status, null for all.
+     * @return List of jobs.
+     */
+    List<CommonPrintServerJob> getJobs(CommonPrintServerJob.Status status) {
+        List<CommonPrintServerJob> list = new ArrayList<>(this.jobs.size());
+
+        for (CommonPrintServerJob job : this.jobs.values()) {
+            if (status == null || job.getStatus() == status) {
+                list.add(job);
+            }
+        }
+        list.sort(Comparator.comparingLong(CommonPrintServerJob::getSubmittedAt).reversed());
+
+        return list;
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the timelines of the most recent finished jobs, for the /debug/jobs
+ * route, and logs the breakdown of the jobs slower than jobs.slowMillis.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerJobTracer {
+
+    /** Used to handle a single instance of this class. */
+    private static final CommonPrintServerJobTracer instance = new CommonPrintServerJobTracer();
+
+    /** Most recent traces, as a ring. */
+    private final Trace[] traces;
+    private long count = 0;
+
+    /** Jobs slower than this are logged, 0 to disable. */
+    private final long slowMillis;
+
+    private CommonPrintServerJobTracer() {
+        this.traces = new Trace[Math.max(1, CommonPrintServerSettings.getInt("debug.jobs", 200))];
+        this.slowMillis = Math.max(0, CommonPrintServerSettings.getLong("jobs.slowMillis", 5000));
+    }
+
+    /**
+     * Return the unique class instance.
+     *
+     * @return The class instance
+     */
+    static CommonPrintServerJobTracer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Record the timeline of a finished job.
+     *
+     * @param job Finished job.
+     */
+    void record(CommonPrintServerJob job) {
+        Trace trace = new Trace(job, this.slowMillis);
+
+        synchronized (this) {
+            this.traces[(int) (this.count++ % this.traces.length)] = trace;
+        }
+
+        if (trace.slow) {
+            StringBuilder sb = new StringBuilder();
+            for (CommonPrintServerJob.Stage stage : job.getTimeline()) {
+                sb.append(' ').append(stage.getName()).append('=').append(stage.getMillis()).append("ms");
+            }
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Slow job {} ({}, {} ms):{}",
+                    job.getId(), job.getPrinter(), trace.totalMillis, sb);
+        }
+    }
+
+    /**
+     * Get the most recent traces, most recent first.
+     *
+     * @param slowOnly Only return the slow jobs.
+     * @return List of traces.
+     */
+    synchronized List<Trace> getTraces(boolean slowOnly) {
+        int size = (int) Math.min(this.count, this.traces.length);
+        List<Trace> list = new ArrayList<>(size);
+
+        for (long i = this.count - 1; i >= this.count - size; i--) {
+            Trace trace = this.traces[(int) (i % this.traces.length)];
+            if (!slowOnly || trace.slow) {
+                list.add(trace);
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Timeline of a finished job, JSON(ised) by the /debug/jobs route.
+     */
+    static final class Trace {
+
+        private final String id;
+        private final CommonPrintServerJob.Type type;
+        private final String printer;
+        private final CommonPrintServerJob.Status status;
+        private final String error;
+        private final long submittedAt;
+        private final double totalMillis;
+        private final boolean slow;
+        private final List<CommonPrintServerJob.Stage> timeline;
+
+        private Trace(CommonPrintServerJob job, long slowMillis) {
+            this.id = job.getId();
+            this.type = job.getType();
+            this.printer = job.getPrinter();
+            this.status = job.getStatus();
+            this.error = job.getError();
+            this.submittedAt = job.getSubmittedAt();
+            this.timeline = job.getTimeline();
+
+            double total = 0;
+            for (CommonPrintServerJob.Stage stage : this.timeline) {
+                total += stage.getMillis();
+            }
+            this.totalMillis = Math.round(total * 1000) / 1000.0;
+            this.slow = slowMillis > 0 && this.totalMillis >= slowMillis;
+        }
+
+    }
+
+}
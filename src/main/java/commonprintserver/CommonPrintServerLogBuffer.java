@@ -0,0 +1,125 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity ring buffer of log lines. Once full, each new line replaces
+ * the oldest one, so the memory used by the log is bounded.
+ *
+ * Each line gets a sequence number, so that readers such as the log window
+ * can keep reading a range of lines while new lines are added.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerLogBuffer {
+
+    private final String[] lines;
+
+    /** Sequence number of the oldest line, and of the next line. */
+    private long first = 0;
+    private long end = 0;
+
+    /**
+     * Create an empty buffer.
+     *
+     * @param capacity Maximum number of lines.
+     */
+    CommonPrintServerLogBuffer(int capacity) {
+        this.lines = new String[Math.max(1, capacity)];
+    }
+
+    /**
+     * Add a line, dropping the oldest one if the buffer is full.
+     *
+     * @param line Line to add.
+     */
+    synchronized void add(String line) {
+        this.lines[(int) (this.end % this.lines.length)] = line;
+        this.end++;
+        if (this.end - this.first > this.lines.length) {
+            this.first++;
+        }
+    }
+
+    /**
+     * Get the sequence number of the oldest line.
+     *
+     * @return Sequence number.
+     */
+    synchronized long first() {
+        return this.first;
+    }
+
+    /**
+     * Get the sequence number the next line will have.
+     *
+     * @return Sequence number.
+     */
+    synchronized long end() {
+        return this.end;
+    }
+
+    /**
+     * Get a line.
+     *
+     * @param sequence Sequence number of the line.
+     * @return The line, or null if dropped or not added yet.
+     */
+    synchronized String get(long sequence) {
+        if (sequence < this.first || sequence >= this.end) {
+            return null;
+        }
+
+        return this.lines[(int) (sequence % this.lines.length)];
+    }
+
+    /**
+     * Copy a range of lines.
+     *
+     * @param from Sequence number of the first line to copy.
+     * @param to Array to copy the lines to, dropped lines are copied as null.
+     * @return Number of lines copied, less than the array length if the
+     * range goes past the newest line.
+     */
+    synchronized int get(long from, String[] to) {
+        int count = (int) Math.max(0, Math.min(to.length, this.end - from));
+
+        for (int i = 0; i < count; i++) {
+            to[i] = from + i < this.first ? null : this.lines[(int) ((from + i) % this.lines.length)];
+        }
+
+        return count;
+    }
+
+    /**
+     * Remove all the lines. Sequence numbers keep increasing.
+     */
+    synchronized void clear() {
+        Arrays.fill(this.lines, null);
+        this.first = this.end;
+    }
+
+}
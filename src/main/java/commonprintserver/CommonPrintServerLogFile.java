@@ -0,0 +1,268 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent log file, written by the logger thread.
+ *
+ * Each batch of log lines is appended with a single channel write. The file
+ * is rotated when it reaches log.file.maxBytes or when the day changes, the
+ * rotated segments are then compressed and the oldest ones deleted on a
+ * separate thread, so logging never waits for it.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerLogFile {
+
+    private static final String NAME = "common-printserver";
+    private static final DateTimeFormatter SEGMENT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+            .withZone(ZoneId.systemDefault());
+
+    /** Time before a failed rotation is tried again (milliseconds). */
+    private static final long ROTATE_RETRY = 60000;
+
+    private final File directory;
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final long maxAge;
+
+    /** Compression of the rotated segments, and retention. */
+    private final ExecutorService archiver = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Common-PrintServer-LogArchiver");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private FileChannel channel = null;
+    private long size = 0;
+    private LocalDate day = null;
+    private long rotateAfter = 0;
+
+    private CommonPrintServerLogFile(File directory, long maxBytes, int maxFiles, long maxAge) {
+        this.directory = directory;
+        this.file = new File(directory, NAME + ".log");
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Open the log file, if enabled (log.file.enabled). Settings are given by
+     * the logger, which cannot use CommonPrintServerSettings getters.
+     *
+     * @param directory Log directory.
+     * @param maxBytes Size of a segment.
+     * @param maxFiles Number of rotated segments kept.
+     * @param maxAgeDays Age, in days, of the oldest rotated segment kept.
+     * @return The log file, or null if it cannot be opened.
+     */
+    static CommonPrintServerLogFile open(File directory, long maxBytes, int maxFiles, int maxAgeDays) {
+        CommonPrintServerLogFile logFile = new CommonPrintServerLogFile(directory, maxBytes, maxFiles,
+                TimeUnit.DAYS.toMillis(maxAgeDays));
+
+        try {
+            logFile.openChannel();
+        } catch (IOException e) {
+            System.err.println("Unable to open log file " + logFile.file + ": " + e.getMessage());
+            return null;
+        }
+        logFile.archiver.execute(logFile::archive);
+
+        return logFile;
+    }
+
+    /**
+     * Open the current segment, continuing the one of a previous run.
+     *
+     * @throws IOException If the file cannot be opened.
+     */
+    private void openChannel() throws IOException {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + this.directory);
+        }
+
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.size = this.channel.size();
+        this.day = this.size == 0 ? LocalDate.now() : Instant.ofEpochMilli(this.file.lastModified())
+                .atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    /**
+     * Append log lines, rotating the file first if needed.
+     *
+     * @param lines Lines to append, each ending with a line separator.
+     * @param time Time of the lines.
+     */
+    void write(String lines, long time) {
+        if (this.channel == null) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        LocalDate today = Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).toLocalDate();
+
+        try {
+            if (this.size > 0 && time >= this.rotateAfter
+                    && (this.size + buffer.remaining() > this.maxBytes || !today.equals(this.day))) {
+                try {
+                    this.rotate(time);
+                } catch (IOException e) {
+                    // Lines are appended to the current file, until the rotation succeeds.
+                    System.err.println("Unable to rotate log file " + this.file + ": " + e.getMessage());
+                    this.rotateAfter = time + ROTATE_RETRY;
+                }
+                if (this.channel == null) {
+                    return;
+                }
+            }
+
+            while (buffer.hasRemaining()) {
+                this.size += this.channel.write(buffer);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write log file " + this.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the current segment, rename it and open a new one. If it cannot
+     * be renamed, the current segment is opened again.
+     *
+     * @param time Time of the rotation.
+     * @throws IOException If the file cannot be rotated.
+     */
+    private void rotate(long time) throws IOException {
+        String name = NAME + "-" + SEGMENT.format(Instant.ofEpochMilli(time));
+        File segment = new File(this.directory, name + ".log");
+
+        for (int i = 1; segment.exists() || new File(segment.getPath() + ".gz").exists(); i++) {
+            segment = new File(this.directory, name + "-" + i + ".log");
+        }
+
+        this.channel.close();
+        this.channel = null;
+        try {
+            Files.move(this.file.toPath(), segment.toPath());
+        } finally {
+            this.openChannel();
+        }
+
+        this.archiver.execute(this::archive);
+    }
+
+    /**
+     * Compress the rotated segments, then delete the ones over the count and
+     * age limits.
+     */
+    private void archive() {
+        File[] segments = this.directory.listFiles((dir, name) -> name.startsWith(NAME + "-") && name.endsWith(".log"));
+
+        if (segments != null) {
+            for (File segment : segments) {
+                this.compress(segment);
+            }
+        }
+
+        File[] archives = this.directory.listFiles((dir, name) -> name.startsWith(NAME + "-") && name.endsWith(".log.gz"));
+        if (archives == null) {
+            return;
+        }
+
+        // Oldest first, archives keep the date of their last line.
+        Arrays.sort(archives, Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+        long limit = System.currentTimeMillis() - this.maxAge;
+        for (int i = 0; i < archives.length; i++) {
+            if (archives.length - i > this.maxFiles || archives[i].lastModified() < limit) {
+                if (!archives[i].delete()) {
+                    System.err.println("Unable to delete log file " + archives[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compress a rotated segment.
+     *
+     * @param segment Segment to compress, deleted once compressed.
+     */
+    private void compress(File segment) {
+        File archive = new File(segment.getPath() + ".gz");
+
+        try (InputStream input = Files.newInputStream(segment.toPath());
+             OutputStream output = new GZIPOutputStream(Files.newOutputStream(archive.toPath()), 64 * 1024)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to compress log file " + segment + ": " + e.getMessage());
+            archive.delete();
+            return;
+        }
+
+        if (!archive.setLastModified(segment.lastModified()) || !segment.delete()) {
+            System.err.println("Unable to delete log file " + segment);
+        }
+    }
+
+    /**
+     * Close the current segment.
+     */
+    void close() {
+        try {
+            if (this.channel != null) {
+                this.channel.force(false);
+                this.channel.close();
+                this.channel = null;
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to close log file " + this.file + ": " + e.getMessage());
+        }
+    }
+
+}
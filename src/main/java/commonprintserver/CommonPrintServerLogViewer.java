@@ -0,0 +1,379 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.*;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.ActionEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * CommonPrintServer log window.
+ *
+ * The window is a list backed by the log buffer : only the visible lines are
+ * read and rendered, whatever the size of the log. New lines are picked up
+ * by a timer on the EDT, in batches, and the filter only keeps the sequence
+ * numbers of the matching lines.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerLogViewer {
+
+    /** Interval, in milliseconds, between two checks for new lines. */
+    private static final int REFRESH_INTERVAL = 250;
+
+    private static JFrame frame;
+
+    private CommonPrintServerLogViewer() {
+    }
+
+    /**
+     * Open a Frame with logs, or bring it to front if already open.
+     * It is possible to filter, copy/save the log and clear it.
+     *
+     * @param buffer Log lines.
+     */
+    static void display(CommonPrintServerLogBuffer buffer) {
+        if (frame != null && frame.isDisplayable()) {
+            frame.toFront();
+            return;
+        }
+
+        frame = new JFrame("Common-PrintServer - Logs");
+        LogModel model = new LogModel(buffer);
+        JList<String> container = new JList<>(model);
+        JScrollPane src_pane = new JScrollPane(container);
+        JToolBar toolbar = new JToolBar();
+        JButton button_clear = new JButton("Clear");
+        JButton button_copy = new JButton("Copy");
+        JButton button_save = new JButton("Save as");
+        JTextField field_filter = new JTextField(20);
+
+        // Fixed cell sizes, so the list never measures all the lines.
+        Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+        FontMetrics metrics = container.getFontMetrics(font);
+        container.setFont(font);
+        container.setFixedCellHeight(metrics.getHeight());
+        container.setFixedCellWidth(800);
+
+        toolbar.setFloatable(false);
+        toolbar.add(button_clear);
+        toolbar.addSeparator();
+        toolbar.add(button_copy);
+        toolbar.addSeparator();
+        toolbar.add(button_save);
+        toolbar.addSeparator();
+        toolbar.add(new JLabel("Filter "));
+        toolbar.add(field_filter);
+
+        Timer timer = new Timer(REFRESH_INTERVAL, (ActionEvent e) -> {
+            int size = model.getSize();
+            boolean atEnd = size == 0 || container.getLastVisibleIndex() >= size - 1;
+
+            model.refresh();
+            container.setFixedCellWidth(Math.max(800, model.getLongestLine() * metrics.charWidth('m') + 16));
+            if (atEnd && model.getSize() > size) {
+                container.ensureIndexIsVisible(model.getSize() - 1);
+            }
+        });
+
+        button_clear.addActionListener((ActionEvent e) -> {
+            model.clear();
+        });
+
+        button_copy.addActionListener((ActionEvent e) -> {
+            StringBuilder sb = new StringBuilder();
+
+            if (container.isSelectionEmpty()) {
+                for (int i = 0; i < model.getSize(); i++) {
+                    sb.append(model.getElementAt(i)).append('\n');
+                }
+            } else {
+                for (int i : container.getSelectedIndices()) {
+                    sb.append(model.getElementAt(i)).append('\n');
+                }
+            }
+
+            StringSelection stringSelection = new StringSelection(sb.toString());
+            Clipboard clpbrd = Toolkit.getDefaultToolkit().getSystemClipboard();
+            clpbrd.setContents(stringSelection, null);
+        });
+
+        button_save.addActionListener((ActionEvent e) -> {
+            File file;
+
+            JFileChooser dialog = new JFileChooser();
+            dialog.setSelectedFile(new File("Common-PrintServer_debug.txt"));
+            dialog.setFileFilter(new FileNameExtensionFilter("Text file", "txt"));
+
+            // Make sure the user didn't cancel the file chooser
+            if (dialog.showSaveDialog(container) == JFileChooser.APPROVE_OPTION) {
+                file = dialog.getSelectedFile();
+
+                // Now write to the file, line by line
+                try (BufferedWriter output = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                    for (int i = 0; i < model.getSize(); i++) {
+                        output.write(model.getElementAt(i));
+                        output.newLine();
+                    }
+                } catch (IOException ioe) {
+                    JOptionPane.showMessageDialog(
+                            container,
+                            "Can't save file " + ioe.getMessage());
+                }
+            }
+        });
+
+        field_filter.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                model.setFilter(field_filter.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                model.setFilter(field_filter.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                model.setFilter(field_filter.getText());
+            }
+        });
+
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+            }
+        });
+
+        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        frame.setIconImage(CommonPrintServerTrayIcon.createImage("images/printer.png"));
+        frame.setSize(800, 600);
+        frame.add(toolbar, BorderLayout.NORTH);
+        frame.add(src_pane, BorderLayout.CENTER);
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+
+        container.ensureIndexIsVisible(model.getSize() - 1);
+        timer.start();
+    }
+
+    /**
+     * List model reading the log buffer. Rows are sequence numbers of the
+     * buffer : either a range of lines, or the lines matching the filter.
+     */
+    private static final class LogModel extends AbstractListModel<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Number of lines read at once when scanning the buffer. */
+        private static final int CHUNK = 4096;
+
+        private final CommonPrintServerLogBuffer buffer;
+        private final String[] chunk = new String[CHUNK];
+
+        /** Lines before this sequence number were cleared from the window. */
+        private long cleared = 0;
+
+        /** Displayed range, when not filtered. */
+        private long viewFirst;
+        private long viewEnd;
+
+        /** Sequence numbers of the matching lines, when filtered. */
+        private String filter = null;
+        private long[] matches = new long[1024];
+        private int head = 0;
+        private int count = 0;
+
+        /** Lines up to this sequence number were checked. */
+        private long scanned;
+
+        /** Length of the longest line seen. */
+        private int longestLine = 0;
+
+        private LogModel(CommonPrintServerLogBuffer buffer) {
+            this.buffer = buffer;
+            this.viewFirst = buffer.first();
+            this.viewEnd = this.viewFirst;
+            this.scanned = this.viewFirst;
+            this.refresh();
+        }
+
+        @Override
+        public int getSize() {
+            return this.filter == null ? (int) (this.viewEnd - this.viewFirst) : this.count;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            long sequence = this.filter == null ? this.viewFirst + index : this.matches[this.head + index];
+            String line = this.buffer.get(sequence);
+
+            return line == null ? "" : line;
+        }
+
+        int getLongestLine() {
+            return longestLine;
+        }
+
+        /**
+         * Drop the lines no longer in the buffer, and add the new ones.
+         */
+        void refresh() {
+            long first = Math.max(this.buffer.first(), this.cleared);
+            long end = this.buffer.end();
+            int removed = 0;
+            int size;
+
+            if (this.filter == null) {
+                if (first > this.viewFirst) {
+                    removed = (int) (Math.min(first, this.viewEnd) - this.viewFirst);
+                    this.viewFirst = first;
+                    this.viewEnd = Math.max(this.viewEnd, first);
+                }
+            } else {
+                while (this.count > 0 && this.matches[this.head] < first) {
+                    this.head++;
+                    this.count--;
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                this.fireIntervalRemoved(this, 0, removed - 1);
+            }
+
+            size = this.getSize();
+            this.scan(Math.max(this.scanned, first), end);
+            if (this.filter == null) {
+                this.viewEnd = end;
+            }
+            if (this.getSize() > size) {
+                this.fireIntervalAdded(this, size, this.getSize() - 1);
+            }
+        }
+
+        /**
+         * Check new lines : measure them, and keep the matching ones.
+         *
+         * @param from First sequence number to check.
+         * @param end Sequence number after the last one to check.
+         */
+        private void scan(long from, long end) {
+            while (from < end) {
+                int read = this.buffer.get(from, this.chunk);
+
+                read = (int) Math.min(read, end - from);
+                for (int i = 0; i < read; i++) {
+                    String line = this.chunk[i];
+                    if (line == null) {
+                        continue;
+                    }
+
+                    this.longestLine = Math.max(this.longestLine, line.length());
+                    if (this.filter != null && contains(line, this.filter)) {
+                        this.addMatch(from + i);
+                    }
+                }
+                if (read == 0) {
+                    break;
+                }
+                from += read;
+            }
+            Arrays.fill(this.chunk, null);
+            this.scanned = Math.max(this.scanned, from);
+        }
+
+        private void addMatch(long sequence) {
+            if (this.head + this.count == this.matches.length) {
+                if (this.head > this.matches.length / 2) {
+                    System.arraycopy(this.matches, this.head, this.matches, 0, this.count);
+                } else {
+                    this.matches = Arrays.copyOf(this.matches, this.matches.length * 2);
+                    System.arraycopy(this.matches, this.head, this.matches, 0, this.count);
+                }
+                this.head = 0;
+            }
+            this.matches[this.head + this.count++] = sequence;
+        }
+
+        /**
+         * Filter the lines, case insensitive.
+         *
+         * @param text Text the lines must contain, empty for all lines.
+         */
+        void setFilter(String text) {
+            int size = this.getSize();
+
+            this.filter = text == null || text.isEmpty() ? null : text;
+            this.head = 0;
+            this.count = 0;
+            this.viewFirst = Math.max(this.buffer.first(), this.cleared);
+            this.viewEnd = this.viewFirst;
+            this.scanned = this.viewFirst;
+            if (size > 0) {
+                this.fireIntervalRemoved(this, 0, size - 1);
+            }
+            this.refresh();
+        }
+
+        /**
+         * Remove the current lines from the window, the log itself is kept.
+         */
+        void clear() {
+            this.cleared = this.buffer.end();
+            this.refresh();
+        }
+
+        /**
+         * Case insensitive contains, without copying the line.
+         */
+        private static boolean contains(String line, String text) {
+            int max = line.length() - text.length();
+
+            for (int i = 0; i <= max; i++) {
+                if (line.regionMatches(true, i, text, 0, text.length())) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+    }
+
+}
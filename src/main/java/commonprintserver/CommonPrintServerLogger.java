@@ -24,69 +24,296 @@
 
 package commonprintserver;
 
-import javax.swing.*;
-import javax.swing.filechooser.FileNameExtensionFilter;
-import java.awt.*;
-import java.awt.datatransfer.Clipboard;
-import java.awt.datatransfer.StringSelection;
-import java.awt.event.ActionEvent;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * CommonPrintServer logger class.
  *
+ * Messages are handed to a background thread which formats them and keeps
+ * the last lines in a fixed-capacity buffer, so logging costs the same on
+ * every request and the memory used by the log is bounded. If the handoff
+ * queue is full, messages are dropped and counted.
+ *
  * @author Alexandre D.
  * @version 1.0.0
  * @since 2016-04-06
  */
 class CommonPrintServerLogger {
 
-    private static JFrame frame;
-    private static JTextArea container;
+    /** Log levels. */
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
 
-    /** Log list. */
-    private static final ArrayList<String> log = new ArrayList<>();
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * Settings are parsed here rather than with CommonPrintServerSettings
+     * getters, which log invalid values.
+     */
+    private static final Level level = parseLevel(CommonPrintServerSettings.get("log.level", "INFO"));
+    private static final int payloadMax = parseInt(CommonPrintServerSettings.get("log.payloadMax", null), 256);
+
+    /** Log lines. */
+    private static final CommonPrintServerLogBuffer log = new CommonPrintServerLogBuffer(
+            parseInt(CommonPrintServerSettings.get("log.capacity", null), 10000));
+
+    /** Messages waiting to be formatted. */
+    private static final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(
+            parseInt(CommonPrintServerSettings.get("log.queueSize", null), 8192));
+    private static final AtomicLong dropped = new AtomicLong();
+
+    /** Queued on exit, so that the logger thread stops once it wrote the previous messages. */
+    private static final Record STOP = new Record(0, Level.INFO, null, null);
+
+    /** Persistent log file, null if disabled. */
+    private static final CommonPrintServerLogFile logFile = openLogFile();
+
+    static {
+        Thread writer = new Thread(CommonPrintServerLogger::write, "Common-PrintServer-Logger");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Write the last messages before exiting. The writer is not
+        // interrupted, which would close the log file in the middle of a write.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (queue.offer(STOP, 2000, TimeUnit.MILLISECONDS)) {
+                    writer.join(2000);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }));
+    }
 
     /**
      * Log a message.
      *
-     * @param String str
+     * @param str Message.
      */
     static void log(String str) {
-        String timeStamp = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime());
+        log(Level.INFO, str);
+    }
 
-        str = "[" + timeStamp + "] " + str;
-        log.add(str);
+    /**
+     * Log a message. The message is only formatted if the level is enabled,
+     * on the logger thread.
+     *
+     * @param lvl Level of the message.
+     * @param format Message, where each {} is replaced by the next argument.
+     * @param args Arguments of the message.
+     */
+    static void log(Level lvl, String format, Object... args) {
+        if (!isEnabled(lvl)) {
+            return;
+        }
 
-        if (frame != null && frame.isShowing()) {
-            container.append("\n" + str);
+        if (!queue.offer(new Record(System.currentTimeMillis(), lvl, format, args))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Check if a level is logged.
+     *
+     * @param lvl Level to check.
+     * @return True if messages of this level are logged.
+     */
+    static boolean isEnabled(Level lvl) {
+        return lvl.compareTo(level) >= 0;
+    }
+
+    /**
+     * Truncate a payload to log, so that logging a large payload costs the
+     * same as a small one.
+     *
+     * @param payload Payload to log.
+     * @return The payload, truncated to log.payloadMax characters.
+     */
+    static String payload(String payload) {
+        if (payload == null || payload.length() <= payloadMax) {
+            return payload;
+        }
+
+        return payload.substring(0, payloadMax) + "... (" + payload.length() + " characters)";
+    }
+
+    /**
+     * Truncate a binary payload to log. Bytes are shown as ISO-8859-1
+     * characters, so that raw codes with 8-bit data are logged as sent.
+     *
+     * @param payload Payload to log.
+     * @return The payload, truncated to log.payloadMax bytes.
+     */
+    static String payload(byte[] payload) {
+        if (payload == null || payload.length <= payloadMax) {
+            return payload == null ? null : new String(payload, StandardCharsets.ISO_8859_1);
+        }
+
+        return new String(payload, 0, payloadMax, StandardCharsets.ISO_8859_1) + "... (" + payload.length + " bytes)";
+    }
+
+    /**
+     * Get the number of messages dropped because the logger could not keep up.
+     *
+     * @return Number of dropped messages.
+     */
+    static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Open the persistent log file, unless disabled.
+     *
+     * @return The log file, or null.
+     */
+    private static CommonPrintServerLogFile openLogFile() {
+        if (!"true".equalsIgnoreCase(CommonPrintServerSettings.get("log.file.enabled", "true"))) {
+            return null;
+        }
+
+        return CommonPrintServerLogFile.open(
+                new File(CommonPrintServerSettings.get("log.file.dir", "logs")),
+                parseInt(CommonPrintServerSettings.get("log.file.maxBytes", null), 10 * 1024 * 1024),
+                parseInt(CommonPrintServerSettings.get("log.file.maxFiles", null), 30),
+                parseInt(CommonPrintServerSettings.get("log.file.maxAgeDays", null), 30));
+    }
+
+    /**
+     * Logger thread : format the queued messages, store them and append them
+     * to the log file. Stops on the STOP record, after writing the messages
+     * queued before it.
+     */
+    private static void write() {
+        List<Record> records = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        long second = -1;
+        long reported = 0;
+        String timeStamp = "";
+        boolean running = true;
+
+        while (running) {
+            try {
+                records.add(queue.take());
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            queue.drainTo(records);
+
+            sb.setLength(0);
+            for (Record record : records) {
+                if (record == STOP) {
+                    running = false;
+                    continue;
+                }
+
+                // The timestamp only changes once per second.
+                if (record.time / 1000 != second) {
+                    second = record.time / 1000;
+                    timeStamp = TIMESTAMP.format(Instant.ofEpochMilli(record.time));
+                }
+
+                String line = "[" + timeStamp + "] " + (record.level == Level.INFO ? "" : record.level + " ") + record.format();
+                log.add(line);
+                sb.append(line).append('\n');
+            }
+            records.clear();
+
+            long lost = dropped.get();
+            if (lost != reported) {
+                String line = "[" + timeStamp + "] " + Level.WARN + " " + (lost - reported) + " log messages dropped";
+                reported = lost;
+                log.add(line);
+                sb.append(line).append('\n');
+            }
+
+            if (sb.length() == 0) {
+                continue;
+            }
+
+            if (logFile != null) {
+                logFile.write(sb.toString(), second * 1000);
+            }
+
+        }
+
+        if (logFile != null) {
+            logFile.close();
         }
     }
 
     static void clearLog() {
         CommonPrintServerLogger.log.clear();
-        if (CommonPrintServerLogger.container != null) {
-            CommonPrintServerLogger.container.setText("");
+    }
+
+    private static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    private static int parseInt(String value, int def) {
+        try {
+            return value == null ? def : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return def;
         }
     }
 
     /**
-     * Format logs to display in Frame.
-     *
-     * @return Logs formatted.
+     * A message waiting to be formatted.
      */
-    private static String formatLog() {
-        String str = "";
+    private static final class Record {
 
-        str = log.stream().map((temp) -> temp + "\n").reduce(str, String::concat);
+        private final long time;
+        private final Level level;
+        private final String format;
+        private final Object[] args;
+
+        private Record(long time, Level level, String format, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+
+        /**
+         * Replace each {} of the message by the next argument.
+         *
+         * @return Formatted message.
+         */
+        private String format() {
+            if (this.args == null || this.args.length == 0) {
+                return this.format;
+            }
+
+            StringBuilder sb = new StringBuilder(this.format.length() + 16 * this.args.length);
+            int start = 0;
+            int arg = 0;
+            int position;
+
+            while (arg < this.args.length && (position = this.format.indexOf("{}", start)) != -1) {
+                sb.append(this.format, start, position).append(this.args[arg++]);
+                start = position + 2;
+            }
+            sb.append(this.format, start, this.format.length());
+
+            return sb.toString();
+        }
 
-        return str;
     }
 
     /**
@@ -94,62 +321,6 @@ class CommonPrintServerLogger {
      * It is possible to copy/save the log and clear it.
      */
     static void displayLog() {
-        frame = new JFrame("Common-PrintServer - Logs");
-        container = new JTextArea(CommonPrintServerLogger.log.isEmpty() ? "" : CommonPrintServerLogger.formatLog());
-        JScrollPane src_pane = new JScrollPane(container);
-        JToolBar toolbar = new JToolBar();
-        JButton button_clear = new JButton("Clear");
-        JButton button_copy = new JButton("Copy");
-        JButton button_save = new JButton("Save as");
-
-        container.setEditable(false);
-
-        toolbar.setFloatable(false);
-        toolbar.add(button_clear);
-        toolbar.addSeparator();
-        toolbar.add(button_copy);
-        toolbar.addSeparator();
-        toolbar.add(button_save);
-
-        button_clear.addActionListener((ActionEvent e) -> {
-            container.setText("");
-        });
-
-        button_copy.addActionListener((ActionEvent e) -> {
-            StringSelection stringSelection = new StringSelection(container.getText());
-            Clipboard clpbrd = Toolkit.getDefaultToolkit().getSystemClipboard();
-            clpbrd.setContents(stringSelection, null);
-        });
-
-        button_save.addActionListener((ActionEvent e) -> {
-            File file;
-
-            JFileChooser dialog = new JFileChooser();
-            dialog.setSelectedFile(new File("Common-PrintServer_debug.txt"));
-            dialog.setFileFilter(new FileNameExtensionFilter("Text file", "txt"));
-
-            // Make sure the user didn't cancel the file chooser
-            if (dialog.showSaveDialog(container) == JFileChooser.APPROVE_OPTION) {
-                file = dialog.getSelectedFile();
-
-                try {
-                    // Now write to the file
-                    PrintWriter output = new PrintWriter(new FileWriter(file));
-                    output.println(container.getText());
-                    output.close();
-                } catch (IOException ioe) {
-                    JOptionPane.showMessageDialog(
-                            container,
-                            "Can't save file " + ioe.getMessage());
-                }
-            }
-        });
-
-        frame.setIconImage(CommonPrintServerTrayIcon.createImage("images/printer.png"));
-        frame.setSize(800, 600);
-        frame.add(toolbar, BorderLayout.NORTH);
-        frame.add(src_pane, BorderLayout.CENTER);
-        frame.setLocationRelativeTo(null);
-        frame.setVisible(true);
+        CommonPrintServerLogViewer.display(log);
     }
 }
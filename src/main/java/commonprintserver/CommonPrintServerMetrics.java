@@ -0,0 +1,316 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server metrics, exposed by the /metrics route in the Prometheus text
+ * format.
+ *
+ * Recording only increments LongAdder/DoubleAdder cells, so that threads
+ * never contend on a lock; the values are summed when the metrics are
+ * scraped. Gauges (queue depths, JVM) are read at scrape time.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerMetrics {
+
+    /** Prefix of the metric names. */
+    private static final String PREFIX = "commonprintserver_";
+
+    /** Latency buckets, in seconds. */
+    private static final double[] LATENCY_BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    /** Size buckets, in bytes. */
+    private static final double[] SIZE_BUCKETS = {
+        1024, 10 * 1024, 100 * 1024, 1024 * 1024, 10 * 1024 * 1024, 100 * 1024 * 1024
+    };
+
+    /** Used to handle a single instance of this class. */
+    private static final CommonPrintServerMetrics instance = new CommonPrintServerMetrics();
+
+    /** Requests, by method, route and status. */
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+    /** Request latencies, by method and route. */
+    private final Map<String, Histogram> requestDurations = new ConcurrentHashMap<>();
+
+    /** Finished jobs, by printer, type and status. */
+    private final Map<String, LongAdder> jobs = new ConcurrentHashMap<>();
+
+    /** Bytes sent to the printers, by printer. */
+    private final Map<String, LongAdder> spooledBytes = new ConcurrentHashMap<>();
+
+    private final Histogram downloadDuration = new Histogram(LATENCY_BUCKETS);
+    private final Histogram downloadSize = new Histogram(SIZE_BUCKETS);
+    private final Histogram pdfLoadDuration = new Histogram(LATENCY_BUCKETS);
+
+    private CommonPrintServerMetrics() {
+    }
+
+    /**
+     * Return the unique class instance.
+     *
+     * @return The class instance
+     */
+    static CommonPrintServerMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Record a served HTTP request.
+     *
+     * @param method HTTP method.
+     * @param route Matched route, like /templates/:name.
+     * @param status HTTP status.
+     * @param nanos Time to serve the request, in nanoseconds.
+     */
+    void request(String method, String route, int status, long nanos) {
+        String labels = "method=\"" + method + "\",route=\"" + escape(route) + "\"";
+
+        counter(this.requests, labels + ",status=\"" + status + "\"").increment();
+        histogram(this.requestDurations, labels, LATENCY_BUCKETS).observe(nanos / 1e9);
+    }
+
+    /**
+     * Record a finished (or rejected) job.
+     *
+     * @param job The job.
+     */
+    void job(CommonPrintServerJob job) {
+        this.job(job.getPrinter(), job.getType(), job.getStatus().name());
+    }
+
+    /**
+     * Record a job outcome.
+     *
+     * @param printer Printer name.
+     * @param type Job type.
+     * @param status Job outcome.
+     */
+    void job(String printer, CommonPrintServerJob.Type type, String status) {
+        counter(this.jobs, "printer=\"" + escape(printer) + "\",type=\""
+                + type.name().toLowerCase() + "\",status=\"" + status.toLowerCase() + "\"").increment();
+    }
+
+    /**
+     * Record bytes sent to a printer.
+     *
+     * @param printer Printer name.
+     * @param bytes Number of bytes.
+     */
+    void spooled(String printer, long bytes) {
+        counter(this.spooledBytes, "printer=\"" + escape(printer) + "\"").add(bytes);
+    }
+
+    /**
+     * Record a document download.
+     *
+     * @param nanos Download time, in nanoseconds.
+     * @param bytes Document size.
+     */
+    void download(long nanos, long bytes) {
+        this.downloadDuration.observe(nanos / 1e9);
+        this.downloadSize.observe(bytes);
+    }
+
+    /**
+     * Record the loading of a PDF document.
+     *
+     * @param nanos Load time, in nanoseconds.
+     */
+    void pdfLoad(long nanos) {
+        this.pdfLoadDuration.observe(nanos / 1e9);
+    }
+
+    /**
+     * Render all the metrics in the Prometheus text format.
+     *
+     * @return Metrics.
+     */
+    String render() {
+        StringBuilder sb = new StringBuilder(8192);
+
+        family(sb, "http_requests_total", "counter", "HTTP requests served.");
+        counters(sb, "http_requests_total", this.requests);
+        family(sb, "http_request_duration_seconds", "histogram", "Time to serve HTTP requests.");
+        new TreeMap<>(this.requestDurations).forEach((labels, histogram) ->
+                histogram.render(sb, "http_request_duration_seconds", labels));
+
+        family(sb, "jobs_total", "counter", "Print jobs, by outcome.");
+        counters(sb, "jobs_total", this.jobs);
+        family(sb, "spooled_bytes_total", "counter", "Bytes sent to the printers.");
+        counters(sb, "spooled_bytes_total", this.spooledBytes);
+
+        family(sb, "queue_depth", "gauge", "Jobs waiting to be spooled.");
+        CommonPrintServerJobQueue.getInstance().getQueueDepths().forEach((printer, depth) ->
+                sample(sb, "queue_depth", "printer=\"" + escape(printer) + "\"", depth));
+
+        family(sb, "spool_bytes", "gauge", "Spool space used by the documents being printed.");
+        sample(sb, "spool_bytes", "", CommonPrintServerSpool.getInstance().getBytes());
+        family(sb, "spool_rejected_total", "counter", "Documents rejected for lack of spool space.");
+        sample(sb, "spool_rejected_total", "", CommonPrintServerSpool.getInstance().getRejected());
+
+        Collection<CommonPrintServerNetworkPrinter> networkPrinters = CommonPrintServerPrinterRegistry.getInstance().getNetworkPrinters();
+        family(sb, "network_connects_total", "counter", "Connections opened to the network printers.");
+        networkPrinters.forEach(printer ->
+                sample(sb, "network_connects_total", "printer=\"" + escape(printer.getName()) + "\"", printer.getConnects()));
+        family(sb, "network_reconnects_total", "counter", "Jobs sent again because a network printer closed a pooled connection.");
+        networkPrinters.forEach(printer ->
+                sample(sb, "network_reconnects_total", "printer=\"" + escape(printer.getName()) + "\"", printer.getReconnects()));
+
+        family(sb, "download_duration_seconds", "histogram", "Time to download the documents printed by URL.");
+        this.downloadDuration.render(sb, "download_duration_seconds", "");
+        family(sb, "download_size_bytes", "histogram", "Size of the documents printed by URL.");
+        this.downloadSize.render(sb, "download_size_bytes", "");
+        family(sb, "pdf_load_duration_seconds", "histogram", "Time to load the PDF documents.");
+        this.pdfLoadDuration.render(sb, "pdf_load_duration_seconds", "");
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        family(sb, "jvm_heap_bytes", "gauge", "JVM heap memory.");
+        sample(sb, "jvm_heap_bytes", "area=\"used\"", heap.getUsed());
+        sample(sb, "jvm_heap_bytes", "area=\"committed\"", heap.getCommitted());
+        sample(sb, "jvm_heap_bytes", "area=\"max\"", heap.getMax());
+
+        family(sb, "jvm_gc_collections_total", "counter", "JVM garbage collections.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(sb, "jvm_gc_collections_total", "gc=\"" + escape(gc.getName()) + "\"", gc.getCollectionCount());
+        }
+        family(sb, "jvm_gc_collection_seconds_total", "counter", "Time spent in JVM garbage collections.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(sb, "jvm_gc_collection_seconds_total", "gc=\"" + escape(gc.getName()) + "\"",
+                    gc.getCollectionTime() / 1000.0);
+        }
+
+        family(sb, "jvm_threads", "gauge", "JVM live threads.");
+        sample(sb, "jvm_threads", "", ManagementFactory.getThreadMXBean().getThreadCount());
+
+        return sb.toString();
+    }
+
+    private static LongAdder counter(Map<String, LongAdder> family, String labels) {
+        LongAdder counter = family.get(labels);
+
+        return counter != null ? counter : family.computeIfAbsent(labels, key -> new LongAdder());
+    }
+
+    private static Histogram histogram(Map<String, Histogram> family, String labels, double[] buckets) {
+        Histogram histogram = family.get(labels);
+
+        return histogram != null ? histogram : family.computeIfAbsent(labels, key -> new Histogram(buckets));
+    }
+
+    private static void family(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counters(StringBuilder sb, String name, Map<String, LongAdder> family) {
+        new TreeMap<>(family).forEach((labels, counter) -> sample(sb, name, labels, counter.sum()));
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * Escape a label value.
+     *
+     * @param value Label value.
+     * @return Escaped value.
+     */
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Histogram with fixed buckets. Observations are counted in their own
+     * bucket, buckets are only made cumulative when rendered.
+     */
+    static final class Histogram {
+
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int i = 0;
+
+            while (i < this.bounds.length && value > this.bounds[i]) {
+                i++;
+            }
+            this.buckets[i].increment();
+            this.sum.add(value);
+        }
+
+        void render(StringBuilder sb, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long count = 0;
+
+            for (int i = 0; i < this.buckets.length; i++) {
+                count += this.buckets[i].sum();
+                String le = i < this.bounds.length ? format(this.bounds[i]) : "+Inf";
+                sample(sb, name + "_bucket", prefix + "le=\"" + le + "\"", count);
+            }
+            sample(sb, name + "_sum", labels, this.sum.sum());
+            sample(sb, name + "_count", labels, count);
+        }
+
+    }
+
+}
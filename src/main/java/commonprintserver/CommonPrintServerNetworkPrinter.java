@@ -0,0 +1,429 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.print.Doc;
+import javax.print.DocFlavor;
+import javax.print.PrintException;
+import javax.print.attribute.PrintRequestAttributeSet;
+
+/**
+ * Printer reached directly through a raw TCP socket (port 9100, also known as
+ * JetDirect or AppSocket), without the system spooler.
+ *
+ * Network printers are declared with the printers.network setting
+ * (ex: Zebra-1=192.168.1.10:9100,Zebra-2=192.168.1.11) and are listed with the
+ * system printers. Raw documents are written to the socket as they are read.
+ * Connections are kept open between jobs, up to network.poolSize per printer,
+ * and closed after network.idleTimeout milliseconds without a job. A pooled
+ * connection closed by the printer is replaced by a new one. A printer which
+ * stops reading (out of paper, half-open connection) for
+ * network.writeTimeout milliseconds fails the job.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerNetworkPrinter extends CommonPrintServerDirectPrinter {
+
+    /** Default port of the raw printing protocol. */
+    private static final int DEFAULT_PORT = 9100;
+
+    /** Size of the buffer used to write the documents. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Closes the idle and stalled connections of all the network printers. */
+    private static ScheduledExecutorService reaper = null;
+
+    private final InetSocketAddress address;
+    private final int connectTimeout;
+    private final int poolSize;
+    private final long idleTimeout;
+    private final long writeTimeout;
+
+    /** Open connections waiting for a job, most recently used first. */
+    private final Deque<Connection> idle = new ArrayDeque<>();
+
+    /** Statistics. */
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    CommonPrintServerNetworkPrinter(String name, InetSocketAddress address) {
+        super(name, DocFlavor.INPUT_STREAM.AUTOSENSE, DocFlavor.BYTE_ARRAY.AUTOSENSE);
+        this.address = address;
+        this.connectTimeout = CommonPrintServerSettings.getInt("network.connectTimeout", 5000);
+        this.poolSize = CommonPrintServerSettings.getInt("network.poolSize", 1);
+        this.idleTimeout = CommonPrintServerSettings.getLong("network.idleTimeout", 30000);
+        this.writeTimeout = CommonPrintServerSettings.getLong("network.writeTimeout", 60000);
+
+        if (this.poolSize > 0 && this.idleTimeout > 0) {
+            long period = Math.max(1000, this.idleTimeout / 2);
+            getReaper().scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Parse the printers.network setting.
+     *
+     * @return Network printers by name, empty if none is declared.
+     */
+    static Map<String, CommonPrintServerNetworkPrinter> configured() {
+        Map<String, CommonPrintServerNetworkPrinter> printers = new LinkedHashMap<>();
+        String setting = CommonPrintServerSettings.get("printers.network", "");
+
+        for (String entry : setting.split(",")) {
+            int separator = entry.indexOf('=');
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            if (separator <= 0) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Invalid network printer {}, expected name=host:port", entry.trim());
+                continue;
+            }
+
+            String name = entry.substring(0, separator).trim();
+            String host = entry.substring(separator + 1).trim();
+            int port = DEFAULT_PORT;
+            int colon = host.lastIndexOf(':');
+            try {
+                if (colon > 0 && host.indexOf(':') == colon) {
+                    port = Integer.parseInt(host.substring(colon + 1));
+                    host = host.substring(0, colon);
+                }
+                printers.put(name, new CommonPrintServerNetworkPrinter(name, InetSocketAddress.createUnresolved(host, port)));
+            } catch (IllegalArgumentException e) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Invalid network printer {}: {}", entry.trim(), e.getMessage());
+            }
+        }
+
+        return printers;
+    }
+
+    /**
+     * Get the shared reaper thread, started on first use.
+     *
+     * @return Reaper.
+     */
+    private static synchronized ScheduledExecutorService getReaper() {
+        if (reaper == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "Common-PrintServer-NetworkPrinters");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // A write deadline is cancelled for each buffer sent
+            executor.setRemoveOnCancelPolicy(true);
+            reaper = executor;
+        }
+
+        return reaper;
+    }
+
+    /**
+     * @return Host and port of the printer.
+     */
+    InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return Number of connections opened to the printer.
+     */
+    long getConnects() {
+        return this.connects.sum();
+    }
+
+    /**
+     * @return Number of jobs sent again because the printer had closed a
+     * pooled connection.
+     */
+    long getReconnects() {
+        return this.reconnects.sum();
+    }
+
+    /**
+     * Write a document to the printer.
+     *
+     * @param input Document to send.
+     * @return Number of bytes sent.
+     * @throws IOException If the printer cannot be reached or closed the connection.
+     */
+    long send(ReadableByteChannel input) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        Connection connection = this.acquire();
+        long count = 0;
+
+        try {
+            boolean end = false;
+            while (!end) {
+                end = fill(input, buffer);
+                if (buffer.position() == 0) {
+                    break;
+                }
+                buffer.flip();
+                try {
+                    connection.write(buffer);
+                } catch (IOException e) {
+                    if (count > 0 || !connection.reused) {
+                        throw e;
+                    }
+                    // The printer dropped the pooled connection before the
+                    // job started: send it again on a new connection.
+                    connection.close();
+                    this.reconnects.increment();
+                    connection = this.connect();
+                    buffer.rewind();
+                    connection.write(buffer);
+                }
+                count += buffer.limit();
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        this.release(connection);
+
+        return count;
+    }
+
+    /**
+     * Read a document until the buffer is full.
+     *
+     * @param input Document.
+     * @param buffer Buffer to fill.
+     * @return True if the end of the document was reached.
+     * @throws IOException If the document cannot be read.
+     */
+    private static boolean fill(ReadableByteChannel input, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer) < 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get a connection to the printer, reusing a pooled one if it is still
+     * open.
+     *
+     * @return Connection, to release once the job is sent.
+     * @throws IOException If the printer cannot be reached.
+     */
+    private Connection acquire() throws IOException {
+        while (true) {
+            Connection connection;
+            synchronized (this.idle) {
+                connection = this.idle.pollFirst();
+            }
+            if (connection == null) {
+                return this.connect();
+            }
+            if (connection.isAlive()) {
+                connection.reused = true;
+                return connection;
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * Open a new connection to the printer.
+     *
+     * @return Connection.
+     * @throws IOException If the printer cannot be reached.
+     */
+    private Connection connect() throws IOException {
+        InetSocketAddress resolved = new InetSocketAddress(this.address.getHostString(), this.address.getPort());
+        SocketChannel channel = SocketChannel.open();
+
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.socket().connect(resolved, this.connectTimeout);
+        } catch (IOException e) {
+            channel.close();
+            throw new IOException("Unable to connect to " + this.getName() + " (" + this.getLocation() + "): " + e.getMessage(), e);
+        }
+        this.connects.increment();
+
+        return new Connection(channel, this.writeTimeout);
+    }
+
+    /**
+     * Give a connection back to the pool, or close it if the pool is full.
+     *
+     * @param connection Connection of a sent job.
+     */
+    private void release(Connection connection) {
+        connection.lastUsed = System.nanoTime();
+        connection.reused = false;
+        synchronized (this.idle) {
+            if (this.idle.size() < this.poolSize) {
+                this.idle.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Close the connections idle for more than network.idleTimeout, so that
+     * the printer accepts other clients.
+     */
+    private void closeIdle() {
+        long limit = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(this.idleTimeout);
+
+        while (true) {
+            Connection connection;
+            synchronized (this.idle) {
+                connection = this.idle.peekLast();
+                if (connection == null || connection.lastUsed - limit > 0) {
+                    return;
+                }
+                this.idle.pollLast();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    String getLocation() {
+        return this.address.getHostString() + ":" + this.address.getPort();
+    }
+
+    @Override
+    void print(Doc doc, PrintRequestAttributeSet attributes) throws PrintException {
+        try {
+            this.send(Channels.newChannel(doc.getStreamForBytes()));
+        } catch (IOException e) {
+            throw new PrintException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Network printer : " + this.getName() + " (" + this.getLocation() + ")";
+    }
+
+    /**
+     * Socket to the printer.
+     */
+    private static final class Connection {
+
+        private final SocketChannel channel;
+
+        /** Time, in milliseconds, the printer has to read a buffer, 0 to wait forever. */
+        private final long writeTimeout;
+
+        /** Taken from the pool, may have been closed by the printer meanwhile. */
+        private boolean reused = false;
+        private long lastUsed;
+
+        Connection(SocketChannel channel, long writeTimeout) {
+            this.channel = channel;
+            this.writeTimeout = writeTimeout;
+        }
+
+        /**
+         * Write a whole buffer. The connection is closed if the printer does
+         * not read it within the write timeout, which ends the blocked write.
+         *
+         * @param buffer Data to write.
+         * @throws IOException If the connection is closed or timed out.
+         */
+        void write(ByteBuffer buffer) throws IOException {
+            ScheduledFuture<?> deadline = this.writeTimeout > 0
+                    ? getReaper().schedule(this::close, this.writeTimeout, TimeUnit.MILLISECONDS)
+                    : null;
+
+            try {
+                while (buffer.hasRemaining()) {
+                    this.channel.write(buffer);
+                }
+            } catch (ClosedChannelException e) {
+                if (deadline != null && deadline.isDone()) {
+                    throw new IOException("Printer did not read for " + this.writeTimeout + " ms", e);
+                }
+                throw e;
+            } finally {
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Check that the printer did not close the connection, discarding
+         * anything it sent (status replies).
+         *
+         * @return True if the connection can be used.
+         */
+        boolean isAlive() {
+            ByteBuffer discard = ByteBuffer.allocate(512);
+
+            try {
+                this.channel.configureBlocking(false);
+                try {
+                    int read;
+                    while ((read = this.channel.read(discard)) > 0) {
+                        discard.clear();
+                    }
+                    return read == 0;
+                } finally {
+                    this.channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                this.channel.close();
+            } catch (IOException ignored) {
+                // Already closed.
+            }
+        }
+
+    }
+
+}
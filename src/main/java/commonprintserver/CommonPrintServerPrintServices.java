@@ -25,21 +25,39 @@ package commonprintserver;
 
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import javax.print.Doc;
 import javax.print.DocFlavor;
 import javax.print.DocPrintJob;
 import javax.print.PrintException;
+import javax.print.PrintService;
 import javax.print.SimpleDoc;
+import javax.print.attribute.HashPrintRequestAttributeSet;
+import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.attribute.standard.JobName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.printing.PDFPageable;
 
 /**
@@ -50,25 +68,46 @@ import org.apache.pdfbox.printing.PDFPageable;
  */
 class CommonPrintServerPrintServices {
 
+    /** Default maximum size of a downloaded document (100 MB). */
+    private static final long DEFAULT_MAX_DOWNLOAD_SIZE = 100L * 1024 * 1024;
+
+    /** Default maximum memory used to load a PDF with the mixed policy (64 MB). */
+    private static final long DEFAULT_PDF_MAIN_MEMORY = 64L * 1024 * 1024;
+
+    /** Default resolution of the printed images, the one of most label printers. */
+    private static final int DEFAULT_IMAGE_DPI = 203;
+
+    /** Size of the buffers used to stream documents. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Maximum number of bytes copied by a single channel transfer. */
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
     /**
      * Send raw code directly to the printer. This method is mostly used for
      * thermal printer like Zebra with ZPL or DPL raw code.
      *
-     * @param String raw_code Raw code to send to printer.
-     * @return String
+     * @param printJob Job holding the printer and the raw code to send.
+     * @return Response, OK or NOK for error message.
      */
-    static String printRaw(String raw_code) {
+    static String printRaw(CommonPrintServerJob printJob) {
+        PrintService printer = printJob.getPrintService();
         CommonPrintServerLogger.log(" printRaw");
-        CommonPrintServerLogger.log("\n" + raw_code + "\n");
         InputStream psStream;
+        byte[] rawCode = printJob.getRawCode();
+        if (CommonPrintServerLogger.isEnabled(CommonPrintServerLogger.Level.INFO)) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "\n{}\n", CommonPrintServerLogger.payload(rawCode));
+        }
 
-        psStream = new ByteArrayInputStream(raw_code.getBytes());
+        psStream = new ByteArrayInputStream(rawCode);
         DocFlavor psInFormat = DocFlavor.INPUT_STREAM.AUTOSENSE;
         Doc myDoc = new SimpleDoc(psStream, psInFormat, null);
 
         try {
-            DocPrintJob job = CommonPrintServerServer.getInstance().getSelectedPrinter().createPrintJob();
+            DocPrintJob job = printer.createPrintJob();
+            printJob.stage("createPrintJob");
             job.print(myDoc, null);
+            printJob.stage("print");
         } catch (NullPointerException | PrintException e) {
             return "NOK|" + e.getMessage();
         }
@@ -79,21 +118,119 @@ class CommonPrintServerPrintServices {
             return "NOK|" + ex.getMessage();
         }
 
+        CommonPrintServerMetrics.getInstance().spooled(printer.getName(), rawCode.length);
+        return "OK";
+    }
+
+    /**
+     * Send the raw codes of several jobs to the printer, as a single print
+     * job. Used to spool coalesced raw jobs.
+     *
+     * @param printJobs Jobs holding the printer and the raw codes to send.
+     * @return Response, OK or NOK for error message.
+     */
+    static String printRaw(List<CommonPrintServerJob> printJobs) {
+        List<InputStream> streams = new ArrayList<>(printJobs.size());
+        long bytes = 0;
+
+        for (CommonPrintServerJob printJob : printJobs) {
+            byte[] rawCode = printJob.getRawCode();
+            streams.add(new ByteArrayInputStream(rawCode));
+            bytes += rawCode.length;
+        }
+        CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, " printRaw ({} coalesced jobs)", streams.size());
+
+        try (InputStream psStream = new SequenceInputStream(Collections.enumeration(streams))) {
+            Doc myDoc = new SimpleDoc(psStream, DocFlavor.INPUT_STREAM.AUTOSENSE, null);
+            DocPrintJob job = printJobs.get(0).getPrintService().createPrintJob();
+            printJobs.forEach(printJob -> printJob.stage("createPrintJob"));
+            job.print(myDoc, null);
+            printJobs.forEach(printJob -> printJob.stage("print"));
+        } catch (IOException | PrintException e) {
+            return "NOK|" + e.getMessage();
+        }
+
+        CommonPrintServerMetrics.getInstance().spooled(printJobs.get(0).getPrinter(), bytes);
         return "OK";
     }
 
     /**
-     * Print file thanks to its URL. Fetch the file and print it.
+     * Send a batch of raw codes to the printer, as a single print job. The
+     * raw codes are streamed one after another, rejected items are skipped.
      *
-     * @param file_url URL of the file to print.
+     * @param printJob Job holding the printer and the items to send.
      * @return Response, OK or NOK for error message.
      */
-    static String printFileByURL(String file_url) {
+    static String printBatch(CommonPrintServerJob printJob) {
+        List<InputStream> streams = new ArrayList<>(printJob.getItems().size());
+        long bytes = 0;
+
+        for (CommonPrintServerJob.Item item : printJob.getItems()) {
+            if (!item.isRejected()) {
+                streams.add(new ByteArrayInputStream(item.getData()));
+                bytes += item.getData().length;
+            }
+        }
+        CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, " printBatch ({} items)", streams.size());
+
+        try (InputStream psStream = new SequenceInputStream(Collections.enumeration(streams))) {
+            Doc myDoc = new SimpleDoc(psStream, DocFlavor.INPUT_STREAM.AUTOSENSE, null);
+            DocPrintJob job = printJob.getPrintService().createPrintJob();
+            printJob.stage("createPrintJob");
+            job.print(myDoc, null);
+            printJob.stage("print");
+        } catch (IOException | PrintException e) {
+            return "NOK|" + e.getMessage();
+        }
+
+        CommonPrintServerMetrics.getInstance().spooled(printJob.getPrinter(), bytes);
+        return "OK";
+    }
+
+    /**
+     * Send raw code to the printer while it is read from the request body.
+     * Nothing is buffered beyond the stream buffer, so the printer (or the
+     * system spooler) receives the beginning of the code while the rest is
+     * still being uploaded.
+     *
+     * @param printJob Job holding the printer and the request body.
+     * @return Response, OK or NOK for error message.
+     */
+    static String printStream(CommonPrintServerJob printJob) {
+        CommonPrintServerLogger.log(" printStream");
+        LimitedInputStream psStream = new LimitedInputStream(printJob.getStream(), Long.MAX_VALUE);
+
+        try {
+            Doc myDoc = new SimpleDoc(psStream, DocFlavor.INPUT_STREAM.AUTOSENSE, null);
+            DocPrintJob job = printJob.getPrintService().createPrintJob();
+            printJob.stage("createPrintJob");
+            job.print(myDoc, null);
+            printJob.stage("print");
+        } catch (PrintException ex) {
+            return "NOK|" + ex.getMessage();
+        }
+
+        CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "    > {} bytes", psStream.getCount());
+        CommonPrintServerMetrics.getInstance().spooled(printJob.getPrinter(), psStream.getCount());
+        return "OK";
+    }
+
+    /**
+     * Print file thanks to its URL. Fetch the file and print it.<br>
+     * The file is fetched through a single connection, and streamed to the
+     * printer (or to a temporary file for PDF).
+     *
+     * @param printJob Job holding the printer and the URL of the file to print.
+     * @return Response, OK or NOK for error message.
+     */
+    static String printFileByURL(CommonPrintServerJob printJob) {
+        PrintService printer = printJob.getPrintService();
+        String file_url = printJob.getPayload();
         CommonPrintServerLogger.log(" printFileByURL");
-        CommonPrintServerLogger.log("    > " + file_url);
+        CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "    > {}", file_url);
 
         //If no Printer is selected, return immediately.
-        if (!CommonPrintServerServer.getInstance().isPrinterSelected()) {
+        if (printer == null) {
             CommonPrintServerLogger.log("Operation aborted: No printer selected.");
             return "NOK|No printer selected";
         }
@@ -104,121 +241,377 @@ class CommonPrintServerPrintServices {
         } catch (MalformedURLException ex) {
             return "NOK|" + ex.getMessage();
         }
-        InputStream psStream;
-        try {
-            psStream = url.openStream();
-        } catch (IOException ex) {
-            return "NOK|" + ex.getMessage();
+
+        String filename = file_url.substring(file_url.lastIndexOf('/') + 1);
+        int connectTimeout = CommonPrintServerSettings.getInt("download.connectTimeout", 10000);
+        int readTimeout = CommonPrintServerSettings.getInt("download.readTimeout", 30000);
+        long maxSize = CommonPrintServerSettings.getLong("download.maxSize", DEFAULT_MAX_DOWNLOAD_SIZE);
+
+        if (CommonPrintServerDocumentCache.getInstance().isEnabled()) {
+            return printCachedFile(printJob, url, filename, connectTimeout, readTimeout, maxSize);
         }
+
+        long start = System.nanoTime();
         URLConnection urlConn;
         try {
             urlConn = url.openConnection();
         } catch (IOException ex) {
             return "NOK|" + ex.getMessage();
         }
+        urlConn.setConnectTimeout(connectTimeout);
+        urlConn.setReadTimeout(readTimeout);
 
-        // If file is a PDF, special treatment, uses PDFBox to print it else
-        // not working.
-        if (urlConn.getContentType() != null && urlConn.getContentType().equalsIgnoreCase("application/pdf")) {
-            CommonPrintServerLogger.log("    > application/pdf [" + file_url + "]");
-            String filename = file_url.substring(file_url.lastIndexOf('/') + 1, file_url.length());
-
-            // Create temp PDF file from the one in URL
-            File temp;
-            try {
-                temp = File.createTempFile("Common-PrintServer_", ".pdf");
-            } catch (IOException ex) {
-                return "NOK|" + ex.getMessage();
-            }
-            FileOutputStream outputStream;
-            try {
-                outputStream = new FileOutputStream(temp);
-            } catch (FileNotFoundException ex) {
-                return "NOK|" + ex.getMessage();
+        try (InputStream psStream = urlConn.getInputStream()) {
+            printJob.stage("connect");
+            if (urlConn.getContentLengthLong() > maxSize) {
+                return "NOK|Document too large (" + urlConn.getContentLengthLong() + " bytes)";
             }
-            int read;
-            byte[] bytes = new byte[1024];
-            try {
-                while ((read = psStream.read(bytes)) != -1) {
-                    outputStream.write(bytes, 0, read);
-                    outputStream.flush();
+
+            // If file is a PDF, special treatment, uses PDFBox to print it else
+            // not working.
+            if (isPdf(urlConn.getContentType())) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "    > application/pdf [{}]", file_url);
+
+                // Spool the PDF from the URL, deleted once printed
+                try (CommonPrintServerSpool.SpoolFile temp = CommonPrintServerSpool.getInstance().create(".pdf")) {
+                    if (urlConn.getContentLengthLong() > 0) {
+                        temp.reserve(urlConn.getContentLengthLong());
+                    }
+                    try (FileChannel outputChannel = FileChannel.open(temp.getFile().toPath(), StandardOpenOption.WRITE)) {
+                        long size = download(Channels.newChannel(psStream), outputChannel, temp, maxSize);
+                        if (size > maxSize) {
+                            return "NOK|Document too large (more than " + maxSize + " bytes)";
+                        }
+                        CommonPrintServerMetrics.getInstance().download(System.nanoTime() - start, size);
+                    }
+                    printJob.stage("download");
+
+                    return printPdf(printJob, temp.getFile(), filename);
                 }
-            } catch (IOException ex) {
-                return "NOK|" + ex.getMessage();
-            }
-            try {
-                outputStream.close();
-            } catch (IOException ex) {
-                return "NOK|" + ex.getMessage();
             }
 
-            // PDFBox
-            PDDocument document;
-            try {
-                document = PDDocument.load(temp);
-            } catch (IOException ex) {
-                return "NOK|" + ex.getMessage();
-            }
+            // If not PDF but a file with raw code then print.
+            // The download is streamed to the printer, its time includes the spooling.
+            DocFlavor psInFormat = DocFlavor.INPUT_STREAM.AUTOSENSE;
+            LimitedInputStream limitedStream = new LimitedInputStream(psStream, maxSize);
+            Doc myDoc = new SimpleDoc(limitedStream, psInFormat, null);
 
-            if (!CommonPrintServerServer.getInstance().isPrinterSelected()) {
-                CommonPrintServerLogger.log("Operation aborted: No printer selected.");
-                return "NOK|No printer selected";
-            }
+            DocPrintJob job = printer.createPrintJob();
+            printJob.stage("createPrintJob");
+            job.print(myDoc, null);
+            printJob.stage("print");
+            CommonPrintServerMetrics.getInstance().download(System.nanoTime() - start, limitedStream.getCount());
+            CommonPrintServerMetrics.getInstance().spooled(printer.getName(), limitedStream.getCount());
+        } catch (IOException | PrintException ex) {
+            return "NOK|" + ex.getMessage();
+        }
+
+        return "OK";
+    }
 
-            DocPrintJob job;
+    /**
+     * Print a file fetched through the document cache.
+     *
+     * @param printJob Job holding the printer.
+     * @param url URL of the file to print.
+     * @param filename Name of the print job.
+     * @param connectTimeout Connection timeout, in milliseconds.
+     * @param readTimeout Read timeout, in milliseconds.
+     * @param maxSize Maximum size of the document.
+     * @return Response, OK or NOK for error message.
+     */
+    private static String printCachedFile(CommonPrintServerJob printJob, URL url, String filename, int connectTimeout, int readTimeout, long maxSize) {
+        PrintService printer = printJob.getPrintService();
+        CommonPrintServerDocumentCache cache = CommonPrintServerDocumentCache.getInstance();
+        CommonPrintServerDocumentCache.Document document;
 
-            // No worry about NullPointerExeption. If no printer is selected
-            // the function return.
-            job = CommonPrintServerServer.getInstance().getSelectedPrinter().createPrintJob();
+        try {
+            document = cache.fetch(url, connectTimeout, readTimeout, maxSize);
+        } catch (IOException ex) {
+            return "NOK|" + ex.getMessage();
+        }
+        printJob.stage("fetch");
 
-            if (job == null) {
-                try {
-                    psStream.close();
-                } catch (IOException ex) {
-                    return "NOK|" + ex.getMessage();
-                }
-                return "NOK|Unable to find the printer...";
+        try {
+            if (isPdf(document.getContentType())) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "    > application/pdf [{}]", url);
+                return printPdf(printJob, document.getFile(), filename);
             }
 
-            PrinterJob pjob = PrinterJob.getPrinterJob();
-            try {
-                pjob.setPrintService(job.getPrintService());
-            } catch (PrinterException ex) {
-                return "NOK|" + ex.getMessage();
-            }
-            pjob.setJobName(filename);
-            pjob.setPageable(new PDFPageable(document));
-            try {
-                pjob.print();
-            } catch (PrinterException ex) {
-                return "NOK|" + ex.getMessage();
+            try (InputStream psStream = new BufferedInputStream(new FileInputStream(document.getFile()), BUFFER_SIZE)) {
+                Doc myDoc = new SimpleDoc(psStream, DocFlavor.INPUT_STREAM.AUTOSENSE, null);
+                DocPrintJob job = printer.createPrintJob();
+                printJob.stage("createPrintJob");
+                job.print(myDoc, null);
+                printJob.stage("print");
             }
-        } else {
-            // If not PDF but a file with raw code then print.
-            DocFlavor psInFormat = DocFlavor.INPUT_STREAM.AUTOSENSE;
+            CommonPrintServerMetrics.getInstance().spooled(printer.getName(), document.getSize());
+        } catch (IOException | PrintException ex) {
+            return "NOK|" + ex.getMessage();
+        } finally {
+            cache.release(document);
+        }
 
-            Doc myDoc = new SimpleDoc(psStream, psInFormat, null);
+        return "OK";
+    }
 
-            try {
-                DocPrintJob job = CommonPrintServerServer.getInstance().getSelectedPrinter().createPrintJob();
-                job.print(myDoc, null);
-            } catch (PrintException pe) {
-                try {
-                    psStream.close();
-                } catch (IOException ignored) {
-                }
-                return "NOK|" + pe.getMessage();
+    /**
+     * Print a file uploaded to the spool, then release it.
+     *
+     * @param printJob Job holding the printer and the spool file to print.
+     * @return Response, OK or NOK for error message.
+     */
+    static String printFile(CommonPrintServerJob printJob) {
+        String filename = printJob.getPayload();
+        CommonPrintServerLogger.log(" printFile");
+        CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "    > {} [{}]", printJob.getContentType(), filename);
+
+        try {
+            if (isPdf(printJob.getContentType())) {
+                return printPdf(printJob, printJob.getDocument().getFile(), filename);
             }
 
+            return printImage(printJob, printJob.getDocument().getFile(), filename);
+        } finally {
+            printJob.discard();
+        }
+    }
+
+    /**
+     * Print a PDF file with PDFBox.
+     *
+     * @param printJob Job holding the printer.
+     * @param file PDF file.
+     * @param filename Name of the print job.
+     * @return Response, OK or NOK for error message.
+     */
+    private static String printPdf(CommonPrintServerJob printJob, File file, String filename) {
+        if (printJob.getPrintService() instanceof CommonPrintServerIppPrinter && CommonPrintServerSettings.getBoolean("ipp.sendPdf", true)) {
+            return printIppFile(printJob, file, DocFlavor.INPUT_STREAM.PDF, filename);
+        }
+
+        String policy = CommonPrintServerSettings.get("pdf.memory", "mixed");
+
+        printJob.setPdfMemory(policy);
+
+        // PDFBox
+        long start = System.nanoTime();
+        try (PDDocument document = PDDocument.load(file, pdfMemoryUsage(policy))) {
+            CommonPrintServerMetrics.getInstance().pdfLoad(System.nanoTime() - start);
+            printJob.stage("load");
+            printPageable(printJob, document, filename);
+        } catch (IOException | PrintException ex) {
+            return "NOK|" + ex.getMessage();
+        }
+
+        CommonPrintServerMetrics.getInstance().spooled(printJob.getPrinter(), file.length());
+        return "OK";
+    }
+
+    /**
+     * Print a PNG or JPEG image, as a PDF page of the image size at
+     * image.dpi. IPP printers get the image as is.
+     *
+     * @param printJob Job holding the printer and the image content type.
+     * @param file Image file.
+     * @param filename Name of the print job.
+     * @return Response, OK or NOK for error message.
+     */
+    private static String printImage(CommonPrintServerJob printJob, File file, String filename) {
+        if (printJob.getPrintService() instanceof CommonPrintServerIppPrinter) {
+            return printIppFile(printJob, file, "image/png".equals(printJob.getContentType())
+                    ? DocFlavor.INPUT_STREAM.PNG
+                    : DocFlavor.INPUT_STREAM.JPEG, filename);
+        }
+
+        String policy = CommonPrintServerSettings.get("pdf.memory", "mixed");
+        float scale = 72f / CommonPrintServerSettings.getInt("image.dpi", DEFAULT_IMAGE_DPI);
+
+        printJob.setPdfMemory(policy);
+
+        try (PDDocument document = new PDDocument(pdfMemoryUsage(policy))) {
+            // JPEG images are embedded as is, PNG images are decoded
+            PDImageXObject image = PDImageXObject.createFromFileByContent(file, document);
+            PDPage page = new PDPage(new PDRectangle(image.getWidth() * scale, image.getHeight() * scale));
+
+            document.addPage(page);
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.drawImage(image, 0, 0, page.getMediaBox().getWidth(), page.getMediaBox().getHeight());
+            }
+            printJob.stage("load");
+            printPageable(printJob, document, filename);
+        } catch (IOException | PrintException ex) {
+            return "NOK|" + ex.getMessage();
         }
 
+        CommonPrintServerMetrics.getInstance().spooled(printJob.getPrinter(), file.length());
+        return "OK";
+    }
+
+    /**
+     * Print a PDF document, as pageable, with a PrinterJob bound to the
+     * printer of the job.
+     *
+     * @param printJob Job holding the printer.
+     * @param document PDF document.
+     * @param filename Name of the print job.
+     * @throws PrintException If the document cannot be printed.
+     */
+    private static void printPageable(CommonPrintServerJob printJob, PDDocument document, String filename) throws PrintException {
+        PrinterJob job = PrinterJob.getPrinterJob();
+
         try {
-            psStream.close();
-        } catch (IOException ex) {
+            job.setPrintService(printJob.getPrintService());
+            printJob.stage("createPrintJob");
+            job.setJobName(filename);
+            job.setPageable(new PDFPageable(document));
+            job.print();
+        } catch (PrinterException ex) {
+            throw new PrintException(ex.getMessage(), ex);
+        }
+        printJob.stage("print");
+    }
+
+    /**
+     * Send a file as is to an IPP printer, which renders it (CUPS filters
+     * or the printer itself).
+     *
+     * @param printJob Job holding the printer.
+     * @param file File to print.
+     * @param flavor Flavor of the file : PDF, PNG or JPEG.
+     * @param filename Name of the print job.
+     * @return Response, OK or NOK for error message.
+     */
+    private static String printIppFile(CommonPrintServerJob printJob, File file, DocFlavor flavor, String filename) {
+        PrintRequestAttributeSet attributes = new HashPrintRequestAttributeSet();
+        attributes.add(new JobName(filename, null));
+
+        try (InputStream psStream = new FileInputStream(file)) {
+            DocPrintJob job = printJob.getPrintService().createPrintJob();
+            printJob.stage("createPrintJob");
+            job.print(new SimpleDoc(psStream, flavor, null), attributes);
+            printJob.stage("print");
+        } catch (IOException | PrintException ex) {
             return "NOK|" + ex.getMessage();
         }
 
+        CommonPrintServerMetrics.getInstance().spooled(printJob.getPrinter(), file.length());
         return "OK";
     }
 
+    /**
+     * Get the PDFBox memory settings for a memory policy :<br>
+     * - main : the whole document is kept in memory.<br>
+     * - mixed : up to pdf.memory.maxMainBytes in memory, then temporary files.<br>
+     * - tempfile : the document is buffered in temporary files only.
+     *
+     * @param policy Memory policy.
+     * @return PDFBox memory settings.
+     */
+    private static MemoryUsageSetting pdfMemoryUsage(String policy) {
+        MemoryUsageSetting setting;
+
+        switch (policy.toLowerCase()) {
+            case "main":
+                setting = MemoryUsageSetting.setupMainMemoryOnly();
+                break;
+            case "tempfile":
+                setting = MemoryUsageSetting.setupTempFileOnly();
+                break;
+            default:
+                setting = MemoryUsageSetting.setupMixed(
+                        CommonPrintServerSettings.getLong("pdf.memory.maxMainBytes", DEFAULT_PDF_MAIN_MEMORY));
+                break;
+        }
+
+        String tempDir = CommonPrintServerSettings.get("pdf.memory.tempDir", null);
+        setting.setTempDir(tempDir != null ? new File(tempDir) : CommonPrintServerSpool.getInstance().getDirectory());
+
+        return setting;
+    }
+
+    /**
+     * Check if a content type is the PDF one.
+     *
+     * @param contentType Content type, possibly with parameters.
+     * @return True if PDF, false otherwise.
+     */
+    private static boolean isPdf(String contentType) {
+        return contentType != null && contentType.toLowerCase().startsWith("application/pdf");
+    }
+
+    /**
+     * Copy a download to a spool file, without intermediate flushes. Spool
+     * space is reserved as the file grows (beyond the announced size), so the
+     * spool can only be exceeded by a single transfer per job.
+     *
+     * @param input Downloaded content.
+     * @param output File to write to.
+     * @param spoolFile Spool file of the output.
+     * @param maxSize Maximum size to copy.
+     * @return Number of bytes copied, greater than maxSize if the download is
+     * larger than allowed.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static long download(ReadableByteChannel input, FileChannel output, CommonPrintServerSpool.SpoolFile spoolFile, long maxSize) throws IOException {
+        long position = 0;
+        long count;
+
+        while ((count = output.transferFrom(input, position, Math.min(TRANSFER_SIZE, maxSize + 1 - position))) > 0) {
+            position += count;
+            spoolFile.reserve(position);
+            if (position > maxSize) {
+                break;
+            }
+        }
+        spoolFile.trim(position);
+
+        return position;
+    }
+
+    /**
+     * Input stream failing once more than a given number of bytes were read.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(new BufferedInputStream(in, BUFFER_SIZE));
+            this.limit = limit;
+            this.remaining = limit;
+        }
+
+        long getCount() {
+            return this.limit - this.remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                this.consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                this.consume(count);
+            }
+            return count;
+        }
+
+        private void consume(long count) throws IOException {
+            this.remaining -= count;
+            if (this.remaining < 0) {
+                throw new IOException("Document too large");
+            }
+        }
+
+    }
+
 }
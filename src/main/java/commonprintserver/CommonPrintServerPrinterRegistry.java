@@ -0,0 +1,356 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import javax.print.DocFlavor;
+import javax.print.PrintService;
+import javax.print.PrintServiceLookup;
+import javax.print.attribute.Attribute;
+import javax.print.attribute.standard.ColorSupported;
+import javax.print.attribute.standard.PrinterInfo;
+import javax.print.attribute.standard.PrinterLocation;
+import javax.print.attribute.standard.PrinterMakeAndModel;
+import javax.print.attribute.standard.QueuedJobCount;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the printers accessible from the server : the system printers
+ * (unless printers.lookup is false), the IPP printers and the network
+ * printers.
+ *
+ * Readers get an immutable snapshot of the printers, without any lookup nor
+ * lock. The snapshot is refreshed in background on a fixed schedule, and on
+ * demand. A new snapshot is only published when a printer was added, removed
+ * or changed.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerPrinterRegistry {
+
+    /** Used to handle a single instance of this class. */
+    private static final CommonPrintServerPrinterRegistry instance = new CommonPrintServerPrinterRegistry();
+
+    /** Current printers, replaced as a whole on change. */
+    private volatile Snapshot snapshot = null;
+
+    /** Background refresh. */
+    private ScheduledExecutorService scheduler = null;
+
+    /** Printers declared by printers.network, kept for their connections. */
+    private final Map<String, CommonPrintServerNetworkPrinter> networkPrinters = CommonPrintServerNetworkPrinter.configured();
+
+    private CommonPrintServerPrinterRegistry() {
+    }
+
+    /**
+     * Return the unique class instance.
+     *
+     * @return The class instance
+     */
+    static CommonPrintServerPrinterRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Start refreshing the printers in background, every printers.refreshInterval
+     * seconds (30 by default, 0 to disable).
+     */
+    synchronized void start() {
+        long interval = CommonPrintServerSettings.getLong("printers.refreshInterval", 30);
+
+        if (this.scheduler != null || interval <= 0) {
+            return;
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Common-PrintServer-PrinterRegistry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                this.refresh();
+            } catch (RuntimeException e) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.ERROR, "Unable to refresh printers: {}", e.getMessage());
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the current printers. The first call loads them if the background
+     * refresh did not run yet.
+     *
+     * @return Printers snapshot.
+     */
+    Snapshot getSnapshot() {
+        Snapshot current = this.snapshot;
+
+        return current == null ? this.refresh() : current;
+    }
+
+    /**
+     * Return the printer object.
+     *
+     * @param name The printer name
+     * @return The printerService instance if found, otherwise null.
+     */
+    PrintService getPrinter(String name) {
+        return this.getSnapshot().printers.get(name);
+    }
+
+    /**
+     * @return Printers declared by the printers.network setting.
+     */
+    Collection<CommonPrintServerNetworkPrinter> getNetworkPrinters() {
+        return this.networkPrinters.values();
+    }
+
+    /**
+     * Search for printers accessible from the server, and publish them if
+     * they changed.
+     *
+     * @return The current snapshot.
+     */
+    synchronized Snapshot refresh() {
+        Snapshot current = this.snapshot;
+        Map<String, PrintService> printers = new LinkedHashMap<>();
+
+        if (CommonPrintServerSettings.getBoolean("printers.lookup", true)) {
+            for (PrintService printer : PrintServiceLookup.lookupPrintServices(null, null)) {
+                printers.put(printer.getName(), printer);
+            }
+        }
+        printers.putAll(CommonPrintServerIppPrinter.configured());
+        printers.putAll(this.networkPrinters);
+
+        // Compared printer by printer, so that a change of state, location or
+        // info of a printer is published as well as a new printer
+        Snapshot next = new Snapshot(current == null ? 1 : current.version + 1, printers);
+        if (current != null && current.fingerprints.equals(next.fingerprints)) {
+            return current;
+        }
+
+        this.snapshot = next;
+        CommonPrintServerLogger.log(" Printers changed (" + this.snapshot.names.size() + ")");
+        for (String name : this.snapshot.names) {
+            CommonPrintServerLogger.log("    > " + name);
+        }
+
+        return this.snapshot;
+    }
+
+    /**
+     * Immutable list of printers.
+     */
+    static final class Snapshot {
+
+        /** Incremented each time the printer list changes. */
+        private final long version;
+        private final Map<String, PrintService> printers;
+        private final List<String> names;
+
+        /** Format : printer1|printer2|printer3 */
+        private final String joinedNames;
+
+        /** Printers of the /printers response, as read when taking the snapshot. */
+        private final List<Printer> entries = new ArrayList<>();
+
+        /** Listed and other attributes of each printer, to detect changes. */
+        private final Map<String, String> fingerprints = new LinkedHashMap<>();
+
+        /** Rendered on first use. */
+        private volatile Listing listing;
+
+        Snapshot(long version, Map<String, PrintService> printers) {
+            this.version = version;
+            this.printers = Collections.unmodifiableMap(printers);
+            this.names = Collections.unmodifiableList(new ArrayList<>(printers.keySet()));
+            this.joinedNames = String.join("|", this.names);
+
+            CommonPrintServerJsonTransformer transformer = new CommonPrintServerJsonTransformer();
+            for (Map.Entry<String, PrintService> printer : printers.entrySet()) {
+                Printer entry = new Printer(printer.getValue());
+                this.entries.add(entry);
+                this.fingerprints.put(printer.getKey(), transformer.render(entry) + fingerprint(printer.getValue()));
+            }
+        }
+
+        /**
+         * Fingerprint the attributes of a printer, but the number of queued
+         * jobs, which changes with every job.
+         *
+         * @param printer The printer.
+         * @return Printer fingerprint.
+         */
+        private static String fingerprint(PrintService printer) {
+            List<String> attributes = new ArrayList<>();
+
+            for (Attribute attribute : printer.getAttributes().toArray()) {
+                if (!(attribute instanceof QueuedJobCount)) {
+                    attributes.add(attribute.getName() + "=" + attribute);
+                }
+            }
+            Collections.sort(attributes);
+
+            return attributes.toString();
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        Map<String, PrintService> getPrinters() {
+            return printers;
+        }
+
+        List<String> getNames() {
+            return names;
+        }
+
+        String getJoinedNames() {
+            return joinedNames;
+        }
+
+        /**
+         * Get the /printers response of the snapshot, rendered once.
+         *
+         * @return Printer listing.
+         */
+        Listing getListing() {
+            Listing current = this.listing;
+
+            if (current == null) {
+                synchronized (this) {
+                    current = this.listing;
+                    if (current == null) {
+                        current = new Listing(this.entries);
+                        this.listing = current;
+                    }
+                }
+            }
+
+            return current;
+        }
+
+    }
+
+    /**
+     * The /printers response of a snapshot : the JSON(ised) printers, and its
+     * entity tag.
+     */
+    static final class Listing {
+
+        private final byte[] json;
+        private final String etag;
+
+        private Listing(List<Printer> printers) {
+            this.json = new CommonPrintServerJsonTransformer().render(new CommonPrintServerResponse(printers)).getBytes(StandardCharsets.UTF_8);
+            this.etag = '"' + digest(this.json) + '"';
+        }
+
+        byte[] getJson() {
+            return json;
+        }
+
+        /**
+         * @return Strong entity tag, a hash of the JSON, so that it survives restarts.
+         */
+        String getETag() {
+            return etag;
+        }
+
+        private static String digest(byte[] content) {
+            StringBuilder sb = new StringBuilder();
+
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+                for (int i = 0; i < 16; i++) {
+                    sb.append(String.format("%02x", hash[i]));
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+
+            return sb.toString();
+        }
+
+    }
+
+    /**
+     * A printer, JSON(ised) by the /printers route. Attributes unknown to the
+     * printer are left out.
+     */
+    static final class Printer {
+
+        private final String name;
+        private final String type;
+        private final String location;
+        private final String info;
+        private final String makeAndModel;
+        private final Boolean color;
+
+        /** Document formats accepted, as MIME types. */
+        private final Set<String> formats = new LinkedHashSet<>();
+
+        private Printer(PrintService service) {
+            PrinterLocation location = service.getAttribute(PrinterLocation.class);
+            PrinterInfo info = service.getAttribute(PrinterInfo.class);
+            PrinterMakeAndModel makeAndModel = service.getAttribute(PrinterMakeAndModel.class);
+            ColorSupported color = service.getAttribute(ColorSupported.class);
+
+            this.name = service.getName();
+            this.type = service instanceof CommonPrintServerIppPrinter ? "ipp"
+                    : service instanceof CommonPrintServerNetworkPrinter ? "network"
+                    : "system";
+            this.location = service instanceof CommonPrintServerDirectPrinter
+                    ? ((CommonPrintServerDirectPrinter) service).getLocation()
+                    : location != null ? location.getValue() : null;
+            this.info = info != null && !info.getValue().equals(this.location) ? info.getValue() : null;
+            this.makeAndModel = makeAndModel != null ? makeAndModel.getValue() : null;
+            this.color = color != null ? color == ColorSupported.SUPPORTED : null;
+
+            for (DocFlavor flavor : service.getSupportedDocFlavors()) {
+                // Java objects (pageable, printable) are not document formats
+                if (!flavor.getMediaSubtype().startsWith("x-java-")) {
+                    this.formats.add(flavor.getMediaType() + "/" + flavor.getMediaSubtype());
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,251 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Dispatch worker of a single printer. Jobs are spooled one at a time, in
+ * the order they were submitted, on a thread dedicated to the printer so
+ * that several printers can print in parallel.
+ *
+ * When coalescing is enabled for the printer, raw jobs arriving within a
+ * short window are merged and spooled as a single print job, trading a
+ * little latency for a lot of throughput under bursty load.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerPrinterWorker implements Runnable {
+
+    private final String printer;
+    private final BlockingQueue<CommonPrintServerJob> queue;
+    private final Consumer<List<CommonPrintServerJob>> spooler;
+    private final BiConsumer<List<CommonPrintServerJob>, String> finisher;
+    private final Thread thread;
+
+    /** Coalescing of raw jobs, disabled if the window is negative. */
+    private final long coalesceWindowNanos;
+    private final long coalesceMaxBytes;
+    private final int coalesceMaxJobs;
+
+    /** Statistics. */
+    private final AtomicLong spools = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    /**
+     * Create and start the worker.
+     *
+     * @param printer Printer name.
+     * @param capacity Maximum number of queued jobs.
+     * @param spooler Function sending jobs to the printer, as a single print
+     * job when several raw jobs were coalesced.
+     * @param finisher Function finishing the jobs left unfinished when the
+     * spooler fails, with the given response.
+     */
+    CommonPrintServerPrinterWorker(String printer, int capacity, Consumer<List<CommonPrintServerJob>> spooler,
+            BiConsumer<List<CommonPrintServerJob>, String> finisher) {
+        String coalesced = CommonPrintServerSettings.get("coalesce.printers", "");
+
+        this.printer = printer;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.spooler = spooler;
+        this.finisher = finisher;
+        if ("*".equals(coalesced) || Arrays.asList(coalesced.split("\\s*,\\s*")).contains(printer)) {
+            this.coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(CommonPrintServerSettings.getLong("coalesce.windowMillis", 20));
+        } else {
+            this.coalesceWindowNanos = -1;
+        }
+        this.coalesceMaxBytes = CommonPrintServerSettings.getLong("coalesce.maxBytes", 64 * 1024);
+        this.coalesceMaxJobs = CommonPrintServerSettings.getInt("coalesce.maxJobs", 100);
+        this.thread = new Thread(this, "Common-PrintServer-Worker-" + printer);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a job.
+     *
+     * @param job Job to print.
+     * @return True if queued, false if the queue is full.
+     */
+    boolean offer(CommonPrintServerJob job) {
+        return this.queue.offer(job);
+    }
+
+    @Override
+    public void run() {
+        CommonPrintServerJob next = null;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            List<CommonPrintServerJob> jobs = new ArrayList<>(1);
+            try {
+                jobs.add(next == null ? this.queue.take() : next);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            next = null;
+            if (this.coalesceWindowNanos >= 0 && jobs.get(0).getType() == CommonPrintServerJob.Type.RAW) {
+                next = this.coalesce(jobs);
+            }
+
+            long start = System.nanoTime();
+            try {
+                this.spooler.accept(jobs);
+            } catch (Throwable e) {
+                // The worker is the only one of the printer, it must survive any job
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.ERROR, "Worker of {} failed to spool: {}", this.printer, e);
+                this.fail(jobs.stream().filter(job -> !job.isFinished()).collect(Collectors.toList()), e);
+            }
+            this.busyNanos.addAndGet(System.nanoTime() - start);
+            this.spools.incrementAndGet();
+
+            for (CommonPrintServerJob job : jobs) {
+                if (job.getStatus() == CommonPrintServerJob.Status.FAILED) {
+                    this.failed.incrementAndGet();
+                } else {
+                    this.completed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finish the jobs of a failed spool through the finisher, so that they
+     * are recorded and archived like any failed job. If even that fails, the
+     * jobs are finished here, so that no request waits for them forever.
+     *
+     * @param jobs Unfinished jobs.
+     * @param error Spool failure.
+     */
+    private void fail(List<CommonPrintServerJob> jobs, Throwable error) {
+        try {
+            this.finisher.accept(jobs, "NOK|" + error);
+        } catch (Throwable e) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.ERROR, "Worker of {} failed to finish jobs: {}", this.printer, e);
+            for (CommonPrintServerJob job : jobs) {
+                if (!job.isFinished()) {
+                    job.finished("NOK|" + error);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gather the raw jobs arriving within the coalescing window, or until
+     * the byte or job count threshold is reached.
+     *
+     * @param jobs Jobs to spool together, starting with the first raw job.
+     * @return The job which ended the window because it is not a raw job,
+     * to be spooled next, or null.
+     */
+    private CommonPrintServerJob coalesce(List<CommonPrintServerJob> jobs) {
+        long deadline = System.nanoTime() + this.coalesceWindowNanos;
+        long bytes = jobs.get(0).getPayloadSize();
+
+        try {
+            while (jobs.size() < this.coalesceMaxJobs && bytes < this.coalesceMaxBytes) {
+                long remaining = deadline - System.nanoTime();
+                CommonPrintServerJob job = remaining > 0
+                        ? this.queue.poll(remaining, TimeUnit.NANOSECONDS)
+                        : this.queue.poll();
+
+                if (job == null) {
+                    break;
+                }
+                if (job.getType() != CommonPrintServerJob.Type.RAW) {
+                    return job;
+                }
+
+                jobs.add(job);
+                bytes += job.getPayloadSize();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the number of jobs waiting to be spooled.
+     *
+     * @return Queue depth.
+     */
+    int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Get a snapshot of the worker statistics.
+     *
+     * @return Worker statistics.
+     */
+    Stats getStats() {
+        return new Stats(this);
+    }
+
+    /**
+     * Worker statistics, JSON(ised) by the /workers route.
+     */
+    static final class Stats {
+
+        private final String printer;
+        private final int queued;
+        private final boolean coalescing;
+        private final long spools;
+        private final long completed;
+        private final long failed;
+        private final long busyMillis;
+
+        /** Jobs spooled per second of activity. */
+        private final double jobsPerSecond;
+
+        private Stats(CommonPrintServerPrinterWorker worker) {
+            this.printer = worker.printer;
+            this.queued = worker.getQueueDepth();
+            this.coalescing = worker.coalesceWindowNanos >= 0;
+            this.spools = worker.spools.get();
+            this.completed = worker.completed.get();
+            this.failed = worker.failed.get();
+
+            long busy = worker.busyNanos.get();
+            this.busyMillis = TimeUnit.NANOSECONDS.toMillis(busy);
+            this.jobsPerSecond = busy == 0 ? 0 : (this.completed + this.failed) * 1e9 / busy;
+        }
+
+    }
+
+}
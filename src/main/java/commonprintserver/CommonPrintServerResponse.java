@@ -27,6 +27,7 @@ package commonprintserver;
  * CommonPrintServer Response format class.
  *
  * Once JSON(ised), will look like this : {"response":"","error":""}
+ * The response can also be an object, ex: a print job status.
  *
  * @author Alexandre D.
  * @version 1.0.0
@@ -34,24 +35,24 @@ package commonprintserver;
  */
 public class CommonPrintServerResponse {
 
-    private String response;
+    private Object response;
     private String error;
 
-    public CommonPrintServerResponse(String res, String err) {
+    public CommonPrintServerResponse(Object res, String err) {
         this.response = res;
         this.error = err;
     }
 
-    public CommonPrintServerResponse(String res) {
+    public CommonPrintServerResponse(Object res) {
         this.response = res;
         this.error = "";
     }
 
-    public String getResponse() {
+    public Object getResponse() {
         return response;
     }
 
-    public void setResponse(String response) {
+    public void setResponse(Object response) {
         this.response = response;
     }
 
@@ -23,12 +23,38 @@
  */
 package commonprintserver;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
 import javax.print.PrintService;
-import javax.print.PrintServiceLookup;
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import javax.servlet.http.Part;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import static spark.Spark.*;
 
@@ -44,25 +70,47 @@ final class CommonPrintServerServer {
     /**
      * Used to handle a single instance of this class.
      */
-    private static CommonPrintServerServer instance = null;
+    private static final CommonPrintServerServer instance = new CommonPrintServerServer();
 
-    /**
-     * Map used to store local printers. Key -> Printer name Value -> The
-     * corresponding PrinterService object
-     */
-    private final Map<String, PrintService> printersMap;
+    /** Header naming the printer of a print request. */
+    private static final String PRINTER_HEADER = "X-Printer";
+
+    /** Default maximum size of an uploaded document (100 MB). */
+    private static final long DEFAULT_MAX_UPLOAD_SIZE = 100L * 1024 * 1024;
+
+    /** Size up to which the uploaded parts are kept in memory. */
+    private static final int UPLOAD_MEMORY_THRESHOLD = 64 * 1024;
+
+    /** Default maximum size of a decoded request body (64 MB). */
+    private static final long DEFAULT_MAX_BODY_SIZE = 64L * 1024 * 1024;
+
+    /** Default size from which the responses are gzipped, about a network packet. */
+    private static final int DEFAULT_COMPRESSION_MIN_SIZE = 1400;
+
+    /** Size of the buffers used to decode the request bodies. */
+    private static final int BODY_BUFFER_SIZE = 16 * 1024;
+
+    /** Request attribute holding the multipart settings of Jetty. */
+    private static final String MULTIPART_ATTRIBUTE = "org.eclipse.jetty.multipartConfig";
+
+    /** Request attribute holding the parts parsed by Jetty. */
+    private static final String MULTIPARTS_ATTRIBUTE = "org.eclipse.jetty.multiParts";
+
+    /** Request attributes used to time the requests. */
+    private static final String START_ATTRIBUTE = "commonprintserver.start";
+    private static final String ROUTE_ATTRIBUTE = "commonprintserver.route";
 
     /**
-     * This is the currently selected printer (must be present in printersMap).
+     * This is the currently selected printer (must be present in the printer
+     * registry), used by the print requests not naming their printer.
      */
-    private PrintService selectedPrinter = null;
+    private volatile PrintService selectedPrinter = null;
 
     /**
      * Private constructor for local initialization. It cannot be used outside
      * of this class.
      */
     private CommonPrintServerServer() {
-        this.printersMap = new HashMap<>();
     }
 
     /**
@@ -71,14 +119,24 @@ final class CommonPrintServerServer {
      * @return The class instance
      */
     static CommonPrintServerServer getInstance() {
-        if (instance == null) {
-            instance = new CommonPrintServerServer();
-        }
         return instance;
     }
 
+    /**
+     * Tag a route handler with its route, for the metrics.
+     *
+     * @param route Route handler.
+     * @return Route handler recording the matched route.
+     */
+    private static Route matched(Route route) {
+        return (req, res) -> {
+            req.attribute(ROUTE_ATTRIBUTE, req.matchedPath());
+            return route.handle(req, res);
+        };
+    }
+
     private static void enableCORS(final String origin, final String methods, final String headers) {
-        options("/*", (request, response) -> {
+        options("/*", matched((request, response) -> {
 
             String accessControlRequestHeaders = request.headers("Access-Control-Request-Headers");
             if (accessControlRequestHeaders != null) {
@@ -91,7 +149,7 @@ final class CommonPrintServerServer {
             }
 
             return "OK";
-        });
+        }));
 
         before((request, response) -> {
             response.header("Access-Control-Allow-Origin", origin);
@@ -124,118 +182,874 @@ final class CommonPrintServerServer {
         }
         */
 
+        CommonPrintServerPrinterRegistry.getInstance().start();
+
+        before((req, res) -> {
+            req.attribute(START_ATTRIBUTE, System.nanoTime());
+        });
+
+        afterAfter((req, res) -> {
+            Long start = req.attribute(START_ATTRIBUTE);
+            String route = req.attribute(ROUTE_ATTRIBUTE);
+
+            if (start != null) {
+                CommonPrintServerMetrics.getInstance().request(req.requestMethod(), route != null ? route : "unmatched",
+                        res.raw().getStatus(), System.nanoTime() - start);
+            }
+        });
+
         enableCORS("*", "*", "*");
 
-        get("/", (req, res) -> {
+        after(CommonPrintServerServer::compress);
+
+        exception(BodyException.class, (e, req, res) -> {
+            res.status(e.status);
+            res.body(new CommonPrintServerJsonTransformer().render(new CommonPrintServerResponse("", e.getMessage())));
+        });
+
+        get("/", matched((req, res) -> {
             return new CommonPrintServerResponse("Hello World !");
-        }, new CommonPrintServerJsonTransformer());
+        }), new CommonPrintServerJsonTransformer());
 
-        get("/getPrinters", (req, res) -> {
-            String printer_list = this.printersToStringList();
+        get("/getPrinters", matched((req, res) -> {
+            CommonPrintServerLogger.log(" getPrinters");
+            CommonPrintServerPrinterRegistry registry = CommonPrintServerPrinterRegistry.getInstance();
+            CommonPrintServerPrinterRegistry.Snapshot printers = req.queryParams("refresh") != null
+                    ? registry.refresh()
+                    : registry.getSnapshot();
 
-            if ("".equals(printer_list)) {
+            if (printers.getNames().isEmpty()) {
                 return new CommonPrintServerResponse("", "No printer found...");
             }
 
-            return new CommonPrintServerResponse(printer_list.replaceAll("\\|$", ""));
-        }, new CommonPrintServerJsonTransformer());
+            return new CommonPrintServerResponse(printers.getJoinedNames());
+        }), new CommonPrintServerJsonTransformer());
 
-        get("/getPrinter", (req, res) -> {
+        get("/printers", matched((req, res) -> {
+            CommonPrintServerPrinterRegistry registry = CommonPrintServerPrinterRegistry.getInstance();
+            CommonPrintServerPrinterRegistry.Listing printers = (req.queryParams("refresh") != null
+                    ? registry.refresh()
+                    : registry.getSnapshot()).getListing();
+
+            // Clients keep the list, but check it is still current on each use
+            res.header("Cache-Control", "no-cache");
+            if (isNotModified(req, printers.getETag())) {
+                res.header("ETag", printers.getETag());
+                res.raw().setHeader("Vary", "Accept-Encoding");
+                res.status(304);
+                return "";
+            }
+
+            // The gzipped response differs byte wise, its tag can only be weak
+            res.header("ETag", gzip(req, res, printers.getJson().length) ? "W/" + printers.getETag() : printers.getETag());
+            return printers.getJson();
+        }));
+
+        get("/getPrinter", matched((req, res) -> {
             return new CommonPrintServerResponse(this.isPrinterSelected() ? getSelectedPrinter().getName() : "N/A");
-        }, new CommonPrintServerJsonTransformer());
+        }), new CommonPrintServerJsonTransformer());
 
-        get("/setPrinter/:name", (req, res) -> {
+        get("/setPrinter/:name", matched((req, res) -> {
             return new CommonPrintServerResponse(this.setSelectedPrinterByName(req.params(":name")));
-        }, new CommonPrintServerJsonTransformer());
+        }), new CommonPrintServerJsonTransformer());
+
+        // Print requests, for the selected printer or for the printer of the path
+        for (String prefix : new String[]{"", "/printers/:printer"}) {
+            post(prefix + "/printRaw", matched((req, res) -> {
+                return this.submitJob(CommonPrintServerJob.Type.RAW, req, res);
+            }), new CommonPrintServerJsonTransformer());
+
+            post(prefix + "/printStream", matched((req, res) -> {
+                return this.submitStream(req, res);
+            }), new CommonPrintServerJsonTransformer());
+
+            post(prefix + "/printFile", matched((req, res) -> {
+                return this.submitFile(req, res);
+            }), new CommonPrintServerJsonTransformer());
+
+            post(prefix + "/printFileByURL", matched((req, res) -> {
+                return this.submitJob(CommonPrintServerJob.Type.URL, req, res);
+            }), new CommonPrintServerJsonTransformer());
+
+            post(prefix + "/printBatch", matched((req, res) -> {
+                return this.submitBatch(req, res);
+            }), new CommonPrintServerJsonTransformer());
+
+            post(prefix + "/printTemplate/:name", matched((req, res) -> {
+                return this.submitTemplate(req, res);
+            }), new CommonPrintServerJsonTransformer());
+        }
 
-        post("/printRaw", (req, res) -> {
-            String response = CommonPrintServerPrintServices.printRaw(req.body());
+        get("/templates", matched((req, res) -> {
+            List<CommonPrintServerTemplate.Info> templates = new ArrayList<>();
 
-            if (response.startsWith("NOK|")) {
-                return new CommonPrintServerResponse("", response.substring(4));
+            CommonPrintServerTemplateStore.getInstance().list().forEach(template -> templates.add(template.getInfo(false)));
+
+            return new CommonPrintServerResponse(templates);
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/templates/:name", matched((req, res) -> {
+            CommonPrintServerTemplate template = CommonPrintServerTemplateStore.getInstance().get(req.params(":name"));
+
+            if (template == null) {
+                res.status(404);
+                return new CommonPrintServerResponse("", "Unknown template: " + req.params(":name"));
+            }
+
+            return new CommonPrintServerResponse(template.getInfo(true));
+        }), new CommonPrintServerJsonTransformer());
+
+        put("/templates/:name", matched((req, res) -> {
+            if (!CommonPrintServerTemplateStore.isValidName(req.params(":name"))) {
+                res.status(400);
+                return new CommonPrintServerResponse("", "Invalid template name: " + req.params(":name"));
+            }
+
+            CommonPrintServerLogger.log(" Template saved: " + req.params(":name"));
+            return new CommonPrintServerResponse(CommonPrintServerTemplateStore.getInstance()
+                    .put(req.params(":name"), new String(getBody(req), StandardCharsets.UTF_8)).getInfo(false));
+        }), new CommonPrintServerJsonTransformer());
+
+        delete("/templates/:name", matched((req, res) -> {
+            if (!CommonPrintServerTemplateStore.getInstance().remove(req.params(":name"))) {
+                res.status(404);
+                return new CommonPrintServerResponse("", "Unknown template: " + req.params(":name"));
             }
 
             return new CommonPrintServerResponse("OK");
-        }, new CommonPrintServerJsonTransformer());
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/jobs", matched((req, res) -> {
+            CommonPrintServerJob.Status status = null;
+
+            if (req.queryParams("status") != null) {
+                try {
+                    status = CommonPrintServerJob.Status.valueOf(req.queryParams("status").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    res.status(400);
+                    return new CommonPrintServerResponse("", "Unknown job status: " + req.queryParams("status"));
+                }
+            }
+
+            return new CommonPrintServerResponse(CommonPrintServerJobQueue.getInstance().getJobs(status));
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/jobs/:id", matched((req, res) -> {
+            CommonPrintServerJob job = CommonPrintServerJobQueue.getInstance().getJob(req.params(":id"));
+
+            if (job == null) {
+                res.status(404);
+                return new CommonPrintServerResponse("", "Unknown job: " + req.params(":id"));
+            }
+
+            return new CommonPrintServerResponse(job);
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/printers/:name/jobs", matched((req, res) -> {
+            PrintService printer = CommonPrintServerPrinterRegistry.getInstance().getPrinter(req.params(":name"));
+
+            if (!(printer instanceof CommonPrintServerIppPrinter)) {
+                res.status(printer == null ? 404 : 400);
+                return new CommonPrintServerResponse("", printer == null ? "Unknown printer: " + req.params(":name") : "Not an IPP printer: " + req.params(":name"));
+            }
+
+            try {
+                return new CommonPrintServerResponse(((CommonPrintServerIppPrinter) printer).getJobs(req.queryParams("completed") != null));
+            } catch (IOException e) {
+                res.status(502);
+                return new CommonPrintServerResponse("", e.getMessage());
+            }
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/workers", matched((req, res) -> {
+            return new CommonPrintServerResponse(CommonPrintServerJobQueue.getInstance().getWorkers());
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/cache", matched((req, res) -> {
+            return new CommonPrintServerResponse(CommonPrintServerDocumentCache.getInstance().getStats());
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/spool", matched((req, res) -> {
+            return new CommonPrintServerResponse(CommonPrintServerSpool.getInstance().getStats());
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/debug/jobs", matched((req, res) -> {
+            return new CommonPrintServerResponse(CommonPrintServerJobTracer.getInstance().getTraces(req.queryParams("slow") != null));
+        }), new CommonPrintServerJsonTransformer());
+
+        get("/metrics", matched((req, res) -> {
+            res.type("text/plain; version=0.0.4; charset=utf-8");
+            return CommonPrintServerMetrics.getInstance().render();
+        }));
+
+    }
+
+    /**
+     * Queue a print job for the printer of the request.<br>
+     * Returns the job ID right away (202 Accepted), unless the wait query
+     * parameter is set, in which case the job is awaited and the response is
+     * OK or the error message, like a synchronous print.
+     *
+     * @param type Kind of payload, the request body holds the payload.
+     * @param req HTTP request.
+     * @param res HTTP response.
+     * @return Response to send back.
+     * @throws IOException If the request body cannot be read.
+     * @throws InterruptedException If interrupted while waiting for the job.
+     */
+    private CommonPrintServerResponse submitJob(CommonPrintServerJob.Type type, Request req, Response res) throws IOException, InterruptedException {
+        // Read before the parameters, so that it is not parsed as a form
+        byte[] body = getBody(req);
+        PrintService printer = this.getPrinter(req);
+
+        if (printer == null) {
+            return this.noPrinter(req, res);
+        }
+
+        // Raw code is sent as received, whatever its charset
+        return this.queueJob(type == CommonPrintServerJob.Type.RAW
+                ? new CommonPrintServerJob(printer, body)
+                : new CommonPrintServerJob(type, printer, new String(body, getCharset(req))), req, res);
+    }
+
+    /**
+     * Print the request body while it is received, for large or binary raw
+     * code.<br>
+     * The job is queued like the others, but the request always waits for
+     * it : the body is read by the printer worker. If the job did not start
+     * within jobs.waitTimeout, it is abandoned (504). Once started, the job
+     * is awaited until the whole body is sent.
+     *
+     * @param req HTTP request.
+     * @param res HTTP response.
+     * @return Response to send back.
+     * @throws IOException If the request body cannot be read.
+     * @throws InterruptedException If interrupted while waiting for the job.
+     */
+    private CommonPrintServerResponse submitStream(Request req, Response res) throws IOException, InterruptedException {
+        // Taken first, so that the body is not parsed as form parameters.
+        // Closed once the job is done with it, or abandoned, to end its inflater.
+        try (InputStream body = getBodyStream(req)) {
+            PrintService printer = this.getPrinter(req);
+
+            if (printer == null) {
+                return this.noPrinter(req, res);
+            }
 
-        post("/printFileByURL", (req, res) -> {
-            String response = CommonPrintServerPrintServices.printFileByURL(req.body());
+            CommonPrintServerJob job = new CommonPrintServerJob(printer, body);
+            Long start = req.attribute(START_ATTRIBUTE);
+            if (start != null) {
+                job.received(start);
+            }
+
+            if (!CommonPrintServerJobQueue.getInstance().submit(job)) {
+                res.status(503);
+                return new CommonPrintServerResponse("", "Job queue is full");
+            }
+
+            if (!job.await(CommonPrintServerSettings.getLong("jobs.waitTimeout", 60000))) {
+                if (job.claim()) {
+                    res.header("Server-Timing", job.getServerTiming());
+                    res.status(504);
+                    return new CommonPrintServerResponse(job.getId(), "Timeout waiting for the job");
+                }
+                // Started : the worker is reading the body, wait for the end of it
+                job.await(Long.MAX_VALUE);
+            }
 
-            if (response.startsWith("NOK|")) {
-                return new CommonPrintServerResponse("", response.substring(4));
+            res.header("Server-Timing", job.getServerTiming());
+            if (job.getStatus() == CommonPrintServerJob.Status.FAILED) {
+                return new CommonPrintServerResponse("", job.getError());
             }
 
             return new CommonPrintServerResponse("OK");
-        }, new CommonPrintServerJsonTransformer());
+        }
+    }
+
+    /**
+     * Get the request body as a stream, read as it is received and decoded
+     * according to its Content-Encoding (gzip or deflate). Spark caches the
+     * whole body of its requests, so the stream of the underlying servlet
+     * request is used.
+     *
+     * @param req HTTP request.
+     * @return Request body.
+     * @throws IOException If the body cannot be read.
+     */
+    private static InputStream getBodyStream(Request req) throws IOException {
+        ServletRequest request = req.raw();
+        String encoding = getContentEncoding(req);
+
+        while (request instanceof ServletRequestWrapper) {
+            request = ((ServletRequestWrapper) request).getRequest();
+        }
+
+        if (encoding == null) {
+            return request.getInputStream();
+        }
 
+        try {
+            switch (encoding) {
+                case "gzip":
+                case "x-gzip":
+                    return new GZIPInputStream(request.getInputStream(), BODY_BUFFER_SIZE);
+                case "deflate":
+                    return new InflaterInputStream(request.getInputStream(), new Inflater(), BODY_BUFFER_SIZE) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            this.inf.end();
+                        }
+                    };
+                default:
+                    throw new BodyException(415, "Unsupported Content-Encoding: " + encoding);
+            }
+        } catch (ZipException | EOFException e) {
+            throw new BodyException(400, "Invalid " + encoding + " body: " + e.getMessage());
+        }
     }
 
     /**
-     * Stop the server and reset logs.
+     * Get the whole request body, decoded according to its Content-Encoding.
+     * A decoded body is limited to compression.maxBodySize, so that a small
+     * compressed body cannot fill the memory.
+     *
+     * @param req HTTP request.
+     * @return Request body.
+     * @throws IOException If the body cannot be read.
      */
-    void stop() {
-        spark.Spark.stop();
-        CommonPrintServerLogger.clearLog();
-        this.selectedPrinter = null;
-        this.printersMap.clear();
+    private static byte[] getBody(Request req) throws IOException {
+        if (getContentEncoding(req) == null) {
+            return req.bodyAsBytes();
+        }
+
+        long maxSize = CommonPrintServerSettings.getLong("compression.maxBodySize", DEFAULT_MAX_BODY_SIZE);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(BODY_BUFFER_SIZE);
+        byte[] buffer = new byte[BODY_BUFFER_SIZE];
+
+        try (InputStream input = getBodyStream(req)) {
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                if (body.size() + count > maxSize) {
+                    throw new BodyException(413, "Decoded body too large (more than " + maxSize + " bytes)");
+                }
+                body.write(buffer, 0, count);
+            }
+        } catch (ZipException | EOFException e) {
+            throw new BodyException(400, "Invalid " + getContentEncoding(req) + " body: " + e.getMessage());
+        }
+
+        return body.toByteArray();
     }
 
     /**
-     * Simply stop and start again the server.
+     * Get the whole request body as text, decoded according to its
+     * Content-Encoding, then to its charset.
+     *
+     * @param req HTTP request.
+     * @return Request body.
+     * @throws IOException If the body cannot be read.
      */
-    void restart() {
-        this.stop();
-        this.start();
+    private static String getBodyString(Request req) throws IOException {
+        return new String(getBody(req), getCharset(req));
     }
 
     /**
-     * Reset the printer list.
+     * Get the charset of the request body.
+     *
+     * @param req HTTP request.
+     * @return Charset named by the Content-Type, or the default raw code
+     * charset if none or unknown.
      */
-    private void clearPrinterList() {
-        this.printersMap.clear();
+    private static Charset getCharset(Request req) {
+        String name = req.raw().getCharacterEncoding();
+
+        try {
+            return name != null && Charset.isSupported(name) ? Charset.forName(name) : CommonPrintServerJob.DEFAULT_CHARSET;
+        } catch (IllegalCharsetNameException e) {
+            return CommonPrintServerJob.DEFAULT_CHARSET;
+        }
     }
 
     /**
-     * Search for printers accessible from the server.
+     * Get the Content-Encoding of the request body.
+     *
+     * @param req HTTP request.
+     * @return Lower case encoding, or null if the body is not encoded.
      */
-    private void loadPrinters() {
-        this.clearPrinterList();
-        for (PrintService print
-                : PrintServiceLookup.lookupPrintServices(null, null)) {
-            this.printersMap.put(print.getName(), print);
+    private static String getContentEncoding(Request req) {
+        String encoding = req.headers("Content-Encoding");
+
+        if (encoding == null) {
+            return null;
         }
+
+        encoding = encoding.trim().toLowerCase();
+        return encoding.isEmpty() || encoding.equals("identity") ? null : encoding;
     }
 
     /**
-     * Return the printers Map.
+     * Gzip a large response, if the client accepts it. Spark compresses the
+     * responses having a gzip Content-Encoding.
      *
-     * @return The Map containing all the printers.
+     * @param req HTTP request.
+     * @param res HTTP response.
      */
-    private Map<String, PrintService> getPrinters() {
-        if (this.printersMap.isEmpty()) {
-            this.loadPrinters();
+    private static void compress(Request req, Response res) {
+        String body = res.body();
+
+        if (body != null) {
+            gzip(req, res, body.length());
+        }
+    }
+
+    /**
+     * Gzip a response of a given size, if large enough and if the client
+     * accepts it.
+     *
+     * @param req HTTP request.
+     * @param res HTTP response.
+     * @param size Response size.
+     * @return True if the response is gzipped.
+     */
+    private static boolean gzip(Request req, Response res, int size) {
+        int minSize = CommonPrintServerSettings.getInt("compression.minSize", DEFAULT_COMPRESSION_MIN_SIZE);
+
+        if (minSize < 0 || res.raw().containsHeader("Content-Encoding")) {
+            return false;
+        }
+
+        // Whatever the size, so that shared caches keep the encodings apart.
+        // Set, not added, as the after filter may run it a second time
+        res.raw().setHeader("Vary", "Accept-Encoding");
+        if (size < minSize) {
+            return false;
+        }
+
+        String accepted = req.headers("Accept-Encoding");
+        if (accepted == null || !accepted.toLowerCase().contains("gzip")) {
+            return false;
         }
 
-        return printersMap;
+        res.header("Content-Encoding", "gzip");
+        return true;
     }
 
     /**
-     * Get the list of printers on computer and return it.<br>
-     * Format : printer1|printer2|printer3
+     * Queue an uploaded PDF, PNG or JPEG file for the printer of the
+     * request.<br>
+     * The request is multipart/form-data, its first file part is printed.
+     * Parts larger than a few KB are received in the spool directory, then
+     * moved to a spool file, so that the document is never held in memory.
      *
-     * @return List of printer.
+     * @param req HTTP request.
+     * @param res HTTP response.
+     * @return Response to send back.
+     * @throws IOException If the request body cannot be read.
+     * @throws InterruptedException If interrupted while waiting for the job.
      */
-    private String printersToStringList() {
-        CommonPrintServerLogger.log(" getPrinters");
-        String printer_list = "";
-        PrintService[] printServices = PrintServiceLookup.lookupPrintServices(null, null);
+    private CommonPrintServerResponse submitFile(Request req, Response res) throws IOException, InterruptedException {
+        CommonPrintServerSpool spool = CommonPrintServerSpool.getInstance();
+        long maxSize = CommonPrintServerSettings.getLong("upload.maxSize", DEFAULT_MAX_UPLOAD_SIZE);
+
+        if (getContentEncoding(req) != null) {
+            res.status(415);
+            return new CommonPrintServerResponse("", "Compressed uploads are not supported, upload the file itself");
+        }
+
+        if (req.contentLength() > maxSize) {
+            res.status(413);
+            return new CommonPrintServerResponse("", "Document too large (more than " + maxSize + " bytes)");
+        }
 
-        for (PrintService printer : printServices) {
-            CommonPrintServerLogger.log("    > " + printer.getName());
-            printer_list += printer.getName() + "|";
+        // Reserved before the parts are received in the spool directory, from
+        // the request size when known (the parts are a bit smaller)
+        CommonPrintServerSpool.SpoolFile document = spool.create(".upload");
+        boolean queued = false;
+        try {
+            document.reserve(Math.max(req.contentLength(), 0));
+        } catch (IOException e) {
+            document.release();
+            res.status(503);
+            return new CommonPrintServerResponse("", e.getMessage());
         }
 
-        return printer_list;
+        // Parsed before the parameters, which would otherwise parse it without settings
+        req.attribute(MULTIPART_ATTRIBUTE, new MultipartConfigElement(spool.getDirectory().getPath(), maxSize, -1, UPLOAD_MEMORY_THRESHOLD));
+        try {
+            Part file = null;
+            try {
+                for (Part part : req.raw().getParts()) {
+                    if (part.getSubmittedFileName() != null) {
+                        file = part;
+                        break;
+                    }
+                }
+            } catch (ServletException e) {
+                res.status(400);
+                return new CommonPrintServerResponse("", "Invalid upload: " + e.getMessage());
+            } catch (IllegalStateException e) {
+                res.status(413);
+                return new CommonPrintServerResponse("", "Document too large (more than " + maxSize + " bytes)");
+            }
+
+            if (file == null) {
+                res.status(400);
+                return new CommonPrintServerResponse("", "No file uploaded");
+            }
+
+            String contentType = getUploadType(file);
+            if (contentType == null) {
+                res.status(415);
+                return new CommonPrintServerResponse("", "Unsupported file type: " + file.getContentType());
+            }
+
+            PrintService printer = this.getPrinter(req);
+            if (printer == null) {
+                return this.noPrinter(req, res);
+            }
+
+            try {
+                document.reserve(file.getSize());
+                document.trim(file.getSize());
+                // Moves the received part to the spool file, or writes it if kept in memory
+                file.write(document.getFile().getName());
+            } catch (IOException e) {
+                res.status(503);
+                return new CommonPrintServerResponse("", e.getMessage());
+            }
+
+            queued = true;
+            return this.queueJob(new CommonPrintServerJob(printer, document, file.getSubmittedFileName(), contentType), req, res);
+        } finally {
+            if (!queued) {
+                document.release();
+            }
+            // Delete the parts left in the spool directory, the server has no servlet context doing it
+            Object parts = req.raw().getAttribute(MULTIPARTS_ATTRIBUTE);
+            if (parts instanceof Closeable) {
+                ((Closeable) parts).close();
+            }
+        }
+    }
+
+    /**
+     * Get the content type of an uploaded file, from its part or, when the
+     * client did not know it, from its file name.
+     *
+     * @param part Uploaded file.
+     * @return application/pdf, image/png, image/jpeg, or null for other files.
+     */
+    private static String getUploadType(Part part) {
+        String type = part.getContentType() == null ? "" : part.getContentType().toLowerCase();
+        String name = part.getSubmittedFileName().toLowerCase();
+
+        if (type.isEmpty() || type.startsWith("application/octet-stream")) {
+            type = name.endsWith(".pdf") ? "application/pdf"
+                    : name.endsWith(".png") ? "image/png"
+                    : name.endsWith(".jpg") || name.endsWith(".jpeg") ? "image/jpeg"
+                    : type;
+        }
+
+        for (String supported : new String[]{"application/pdf", "image/png", "image/jpeg"}) {
+            if (type.startsWith(supported)) {
+                return supported;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Queue a batch of raw codes for the printer of the request, spooled as a
+     * single print job.<br>
+     * The request body is either a JSON array of strings, or one JSON string
+     * per line. Returns the batch job with the result of each item.
+     *
+     * @param req HTTP request.
+     * @param res HTTP response.
+     * @return Response to send back.
+     * @throws IOException If the request body cannot be read.
+     * @throws InterruptedException If interrupted while waiting for the job.
+     */
+    private CommonPrintServerResponse submitBatch(Request req, Response res) throws IOException, InterruptedException {
+        String body = getBodyString(req);
+        PrintService printer = this.getPrinter(req);
+
+        if (printer == null) {
+            return this.noPrinter(req, res);
+        }
+
+        List<CommonPrintServerJob.Item> items;
+        try {
+            items = this.parseBatch(body, getCharset(req));
+        } catch (JsonParseException e) {
+            res.status(400);
+            return new CommonPrintServerResponse("", "Invalid batch: " + e.getMessage());
+        }
+
+        int maxItems = CommonPrintServerSettings.getInt("batch.maxItems", 10000);
+        if (items.size() > maxItems) {
+            res.status(413);
+            return new CommonPrintServerResponse("", "Too many items in batch (maximum " + maxItems + ")");
+        }
+
+        if (items.stream().allMatch(CommonPrintServerJob.Item::isRejected)) {
+            res.status(400);
+            return new CommonPrintServerResponse(items, "Nothing to print");
+        }
+
+        return this.queueJob(new CommonPrintServerJob(printer, items), req, res);
+    }
+
+    /**
+     * Parse the items of a batch.
+     *
+     * @param body JSON array of strings, or one JSON string per line.
+     * @param charset Charset the body was decoded with, to encode the items.
+     * @return Batch items, non-string or empty items are rejected.
+     * @throws JsonParseException If the body is not valid JSON.
+     */
+    private List<CommonPrintServerJob.Item> parseBatch(String body, Charset charset) {
+        List<JsonElement> elements = new ArrayList<>();
+        List<CommonPrintServerJob.Item> items = new ArrayList<>();
+
+        if (body.trim().startsWith("[")) {
+            JsonParser.parseString(body).getAsJsonArray().forEach(elements::add);
+        } else {
+            for (String line : body.split("\r?\n")) {
+                if (!line.trim().isEmpty()) {
+                    elements.add(JsonParser.parseString(line));
+                }
+            }
+        }
+
+        for (JsonElement element : elements) {
+            int index = items.size();
+
+            if (!element.isJsonPrimitive() || !element.getAsJsonPrimitive().isString()) {
+                items.add(new CommonPrintServerJob.Item(index, "Item is not a string"));
+            } else if (element.getAsString().isEmpty()) {
+                items.add(new CommonPrintServerJob.Item(index, "Item is empty"));
+            } else {
+                items.add(new CommonPrintServerJob.Item(index, CommonPrintServerJob.encode(element.getAsString(), charset)));
+            }
+        }
+
+        return items;
+    }
+
+    /**
+     * Render a template and queue it for the printer of the request.<br>
+     * The request body is a JSON object with the variable values, or a JSON
+     * array of such objects to print several labels as a batch.
+     *
+     * @param req HTTP request.
+     * @param res HTTP response.
+     * @return Response to send back.
+     * @throws IOException If the request body cannot be read.
+     * @throws InterruptedException If interrupted while waiting for the job.
+     */
+    private CommonPrintServerResponse submitTemplate(Request req, Response res) throws IOException, InterruptedException {
+        String variables = getBodyString(req);
+        PrintService printer = this.getPrinter(req);
+        CommonPrintServerTemplate template = CommonPrintServerTemplateStore.getInstance().get(req.params(":name"));
+
+        if (template == null) {
+            res.status(404);
+            return new CommonPrintServerResponse("", "Unknown template: " + req.params(":name"));
+        }
+
+        if (printer == null) {
+            return this.noPrinter(req, res);
+        }
+
+        JsonElement body;
+        try {
+            body = JsonParser.parseString(variables);
+        } catch (JsonParseException e) {
+            res.status(400);
+            return new CommonPrintServerResponse("", "Invalid variables: " + e.getMessage());
+        }
+
+        if (!body.isJsonArray()) {
+            Map<String, String> values = this.parseVariables(body);
+            Set<String> missing = values == null ? null : template.getMissingVariables(values);
+
+            if (values == null || !missing.isEmpty()) {
+                res.status(400);
+                return new CommonPrintServerResponse("", values == null
+                        ? "Variables must be a JSON object of strings"
+                        : "Missing variables: " + String.join(", ", missing));
+            }
+
+            return this.queueJob(new CommonPrintServerJob(printer, template.render(values)), req, res);
+        }
+
+        List<CommonPrintServerJob.Item> items = new ArrayList<>();
+        for (JsonElement element : body.getAsJsonArray()) {
+            int index = items.size();
+            Map<String, String> values = this.parseVariables(element);
+            Set<String> missing = values == null ? null : template.getMissingVariables(values);
+
+            if (values == null) {
+                items.add(new CommonPrintServerJob.Item(index, "Variables must be a JSON object of strings"));
+            } else if (!missing.isEmpty()) {
+                items.add(new CommonPrintServerJob.Item(index, "Missing variables: " + String.join(", ", missing)));
+            } else {
+                items.add(new CommonPrintServerJob.Item(index, template.render(values)));
+            }
+        }
+
+        if (items.stream().allMatch(CommonPrintServerJob.Item::isRejected)) {
+            res.status(400);
+            return new CommonPrintServerResponse(items, "Nothing to print");
+        }
+
+        return this.queueJob(new CommonPrintServerJob(printer, items), req, res);
+    }
+
+    /**
+     * Parse the variable values of a template.
+     *
+     * @param element JSON object, with string, number or boolean values.
+     * @return Variable values, or null if invalid.
+     */
+    private Map<String, String> parseVariables(JsonElement element) {
+        if (!element.isJsonObject()) {
+            return null;
+        }
+
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+            if (entry.getValue().isJsonNull()) {
+                continue;
+            }
+            if (!entry.getValue().isJsonPrimitive()) {
+                return null;
+            }
+            values.put(entry.getKey(), entry.getValue().getAsString());
+        }
+
+        return values;
+    }
+
+    /**
+     * Get the printer of a print request : the printer named by the :printer
+     * path parameter, the X-Printer header or the printer query parameter, in
+     * this order. Requests naming no printer use the selected printer.
+     *
+     * @param req HTTP request.
+     * @return Printer, or null if the named printer does not exist or if no
+     * printer is selected.
+     */
+    private PrintService getPrinter(Request req) {
+        String name = getPrinterName(req);
+
+        return name == null ? this.selectedPrinter : this.getPrinterByName(name);
+    }
+
+    /**
+     * Get the name of the printer of a print request.
+     *
+     * @param req HTTP request.
+     * @return Printer name, or null if the request does not name one.
+     */
+    private static String getPrinterName(Request req) {
+        String name = req.params(":printer");
+
+        if (name == null) {
+            name = req.headers(PRINTER_HEADER);
+        }
+        if (name == null) {
+            name = req.queryParams("printer");
+        }
+
+        return name == null || name.isEmpty() ? null : name;
+    }
+
+    /**
+     * Reject a print request without printer.
+     *
+     * @param req HTTP request.
+     * @param res HTTP response.
+     * @return Response to send back.
+     */
+    private CommonPrintServerResponse noPrinter(Request req, Response res) {
+        String name = getPrinterName(req);
+
+        if (name != null) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "Operation aborted: Unknown printer {}.", name);
+            res.status(404);
+            return new CommonPrintServerResponse("", "Unknown printer: " + name);
+        }
+
+        CommonPrintServerLogger.log("Operation aborted: No printer selected.");
+        return new CommonPrintServerResponse("", "No printer selected");
+    }
+
+    /**
+     * Queue a print job.<br>
+     * Returns the job ID right away (202 Accepted), unless the wait query
+     * parameter is set, in which case the job is awaited and the response is
+     * OK or the error message, like a synchronous print. Batch jobs are
+     * returned as a whole, to report the result of each item.
+     *
+     * @param job Job to queue.
+     * @param req HTTP request.
+     * @param res HTTP response.
+     * @return Response to send back.
+     * @throws InterruptedException If interrupted while waiting for the job.
+     */
+    private CommonPrintServerResponse queueJob(CommonPrintServerJob job, Request req, Response res) throws InterruptedException {
+        boolean batch = job.getType() == CommonPrintServerJob.Type.BATCH;
+        Long start = req.attribute(START_ATTRIBUTE);
+
+        if (start != null) {
+            job.received(start);
+        }
+
+        if (!CommonPrintServerJobQueue.getInstance().submit(job)) {
+            res.status(503);
+            return new CommonPrintServerResponse("", "Job queue is full");
+        }
+
+        if (req.queryParams("wait") == null || "false".equals(req.queryParams("wait"))) {
+            res.header("Server-Timing", job.getServerTiming());
+            res.status(202);
+            return new CommonPrintServerResponse(batch ? job : job.getId());
+        }
+
+        boolean finished = job.await(CommonPrintServerSettings.getLong("jobs.waitTimeout", 60000));
+
+        res.header("Server-Timing", job.getServerTiming());
+        if (!finished) {
+            res.status(504);
+            return new CommonPrintServerResponse(batch ? job : job.getId(), "Timeout waiting for the job");
+        }
+
+        if (job.getStatus() == CommonPrintServerJob.Status.FAILED) {
+            return new CommonPrintServerResponse(batch ? job : "", job.getError());
+        }
+
+        return new CommonPrintServerResponse(batch ? job : "OK");
+    }
+
+    /**
+     * Stop the server and reset logs.
+     */
+    void stop() {
+        spark.Spark.stop();
+        CommonPrintServerLogger.clearLog();
+        this.selectedPrinter = null;
+    }
+
+    /**
+     * Simply stop and start again the server.
+     */
+    void restart() {
+        this.stop();
+        this.start();
     }
 
     /**
@@ -245,7 +1059,7 @@ final class CommonPrintServerServer {
      * @return The printerService instance if found, otherwise null.
      */
     private PrintService getPrinterByName(String name) {
-        return this.getPrinters().get(name);
+        return CommonPrintServerPrinterRegistry.getInstance().getPrinter(name);
     }
 
     /**
@@ -254,7 +1068,7 @@ final class CommonPrintServerServer {
      * @return Selected printer.
      */
     PrintService getSelectedPrinter() {
-        CommonPrintServerLogger.log(" getPrinter > " + (this.isPrinterSelected() ? this.selectedPrinter.getName() : "N/A"));
+        CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, " getPrinter > {}", this.isPrinterSelected() ? this.selectedPrinter.getName() : "N/A");
         return this.selectedPrinter;
     }
 
@@ -292,4 +1106,45 @@ final class CommonPrintServerServer {
         return !(this.selectedPrinter == null);
     }
 
+    /**
+     * Check a conditional request against the entity tag of the current
+     * response. Tags are compared weakly, as required for If-None-Match.
+     *
+     * @param req HTTP request.
+     * @param etag Entity tag of the current response.
+     * @return True if the client already has the response.
+     */
+    private static boolean isNotModified(Request req, String etag) {
+        String header = req.headers("If-None-Match");
+
+        if (header == null) {
+            return false;
+        }
+
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * A request body which cannot be read, rejected with its HTTP status.
+     */
+    private static final class BodyException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private BodyException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+    }
+
 }
@@ -0,0 +1,138 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Read-only server settings.
+ *
+ * Values are read once from the config.properties file of the working
+ * directory, then overridden by system properties prefixed with
+ * "commonprintserver." (ex: -Dcommonprintserver.jobs.maxQueued=100).
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerSettings {
+
+    /** Prefix of the system properties overriding the file values. */
+    private static final String PREFIX = "commonprintserver.";
+
+    /** Settings loaded from the properties file. */
+    private static final Properties properties = load();
+
+    private CommonPrintServerSettings() {
+    }
+
+    /**
+     * Load the properties file, if any.
+     *
+     * @return Loaded properties, empty if the file does not exist.
+     */
+    private static Properties load() {
+        Properties props = new Properties();
+
+        try (InputStream input = new FileInputStream("config.properties")) {
+            props.load(input);
+        } catch (IOException ignored) {
+            // No configuration file, defaults are used.
+        }
+
+        return props;
+    }
+
+    /**
+     * Get a setting value.
+     *
+     * @param key Name of the setting.
+     * @param def Default value.
+     * @return Setting value, or the default value if not set.
+     */
+    static String get(String key, String def) {
+        String value = System.getProperty(PREFIX + key);
+
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+
+        return value == null || value.trim().isEmpty() ? def : value.trim();
+    }
+
+    /**
+     * Get an integer setting.
+     *
+     * @param key Name of the setting.
+     * @param def Default value.
+     * @return Setting value, or the default value if not set or invalid.
+     */
+    static int getInt(String key, int def) {
+        long value = getLong(key, def);
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Invalid value for setting {}: {}", key, value);
+            return def;
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Get a long setting.
+     *
+     * @param key Name of the setting.
+     * @param def Default value.
+     * @return Setting value, or the default value if not set or invalid.
+     */
+    static long getLong(String key, long def) {
+        String value = get(key, null);
+
+        if (value == null) {
+            return def;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Invalid value for setting {}: {}", key, value);
+            return def;
+        }
+    }
+
+    /**
+     * Get a boolean setting.
+     *
+     * @param key Name of the setting.
+     * @param def Default value.
+     * @return Setting value, or the default value if not set.
+     */
+    static boolean getBoolean(String key, boolean def) {
+        String value = get(key, null);
+
+        return value == null ? def : ("true".equalsIgnoreCase(value) || "1".equals(value));
+    }
+
+}
@@ -0,0 +1,308 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spool directory, holding the documents downloaded for printing.
+ *
+ * Spool files are reference counted and deleted once the last user releases
+ * them. The space they use is reserved up front against spool.maxBytes : a
+ * job needing more space waits up to spool.waitTimeout for other jobs to
+ * finish, then fails. Files left by a previous run are swept once, when the
+ * spool is first used.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerSpool {
+
+    /** Default maximum size of the spool files (512 MB). */
+    private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    /** Name prefix of the spool files, and of the upload parts written by Jetty. */
+    private static final String PREFIX = "spool_";
+    private static final String UPLOAD_PREFIX = "MultiPart";
+
+    /** Used to handle a single instance of this class. */
+    private static final CommonPrintServerSpool instance = new CommonPrintServerSpool();
+
+    private final File directory;
+    private final long maxBytes;
+    private final long waitTimeout;
+
+    /** Bytes reserved by the spool files, guarded by this. */
+    private long bytes = 0;
+
+    /** Files of the live spool files, never swept. */
+    private final Set<File> files = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /** Statistics. */
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private CommonPrintServerSpool() {
+        this.directory = new File(CommonPrintServerSettings.get("spool.dir",
+                new File(System.getProperty("java.io.tmpdir"), "Common-PrintServer-spool").getPath()));
+        this.maxBytes = CommonPrintServerSettings.getLong("spool.maxBytes", DEFAULT_MAX_BYTES);
+        this.waitTimeout = CommonPrintServerSettings.getLong("spool.waitTimeout", 30000);
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to create spool directory {}", this.directory);
+        }
+        this.sweep();
+    }
+
+    /**
+     * Return the unique class instance.
+     *
+     * @return The class instance
+     */
+    static CommonPrintServerSpool getInstance() {
+        return instance;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Delete the files of the spool directory left by a previous run or a
+     * crash. Only done on a cold start : once the server runs, the directory
+     * also holds the parts of the uploads in progress. Only the files named
+     * like the spool files and the upload parts are deleted, the directory
+     * may be shared with other files.
+     */
+    private void sweep() {
+        File[] orphans = this.directory.listFiles(file -> file.isFile() && !this.files.contains(file)
+                && (file.getName().startsWith(PREFIX) || file.getName().startsWith(UPLOAD_PREFIX)));
+        int count = 0;
+
+        if (orphans == null) {
+            return;
+        }
+        for (File orphan : orphans) {
+            if (orphan.delete()) {
+                count++;
+            } else {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to delete spool file {}", orphan);
+            }
+        }
+        if (count > 0) {
+            CommonPrintServerLogger.log(CommonPrintServerLogger.Level.INFO, "{} orphan spool files deleted", count);
+        }
+    }
+
+    /**
+     * Create an empty spool file, held by the caller.
+     *
+     * @param suffix File name suffix, ex: .pdf.
+     * @return Spool file, to release once printed.
+     * @throws IOException If the file cannot be created.
+     */
+    SpoolFile create(String suffix) throws IOException {
+        File file = File.createTempFile(PREFIX, suffix, this.directory);
+
+        this.files.add(file);
+        this.created.incrementAndGet();
+
+        return new SpoolFile(file);
+    }
+
+    /**
+     * Reserve spool space, waiting for other jobs to free some if needed.
+     *
+     * @param count Number of bytes.
+     * @throws IOException If the space cannot be reserved in time.
+     */
+    private synchronized void reserve(long count) throws IOException {
+        if (this.bytes + count <= this.maxBytes) {
+            this.bytes += count;
+            return;
+        }
+        if (count > this.maxBytes) {
+            this.rejected.incrementAndGet();
+            throw new IOException("Document too large for the spool (" + this.maxBytes + " bytes)");
+        }
+
+        this.waits.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.waitTimeout);
+        try {
+            while (this.bytes + count > this.maxBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    this.rejected.incrementAndGet();
+                    throw new IOException("Spool is full (" + this.bytes + " bytes used)");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for spool space", e);
+        }
+        this.bytes += count;
+    }
+
+    /**
+     * Give back spool space.
+     *
+     * @param count Number of bytes.
+     */
+    private synchronized void free(long count) {
+        this.bytes -= count;
+        this.notifyAll();
+    }
+
+    /**
+     * Get the spool statistics.
+     *
+     * @return Spool statistics.
+     */
+    synchronized Stats getStats() {
+        return new Stats(this);
+    }
+
+    /**
+     * A file of the spool directory, deleted when released by all its users.
+     */
+    final class SpoolFile implements Closeable {
+
+        private final File file;
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        /** Bytes reserved for this file. */
+        private long reserved = 0;
+
+        private SpoolFile(File file) {
+            this.file = file;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * Make sure the file can grow up to a size, waiting for space if the
+         * spool is full.
+         *
+         * @param size Size of the file.
+         * @throws IOException If the space cannot be reserved.
+         */
+        synchronized void reserve(long size) throws IOException {
+            if (size > this.reserved) {
+                CommonPrintServerSpool.this.reserve(size - this.reserved);
+                this.reserved = size;
+            }
+        }
+
+        /**
+         * Give back the space reserved beyond the actual size of the file.
+         *
+         * @param size Size of the file.
+         */
+        synchronized void trim(long size) {
+            if (size < this.reserved) {
+                CommonPrintServerSpool.this.free(this.reserved - size);
+                this.reserved = size;
+            }
+        }
+
+        /**
+         * Add a user of the file.
+         *
+         * @return This file.
+         */
+        SpoolFile acquire() {
+            this.users.incrementAndGet();
+            return this;
+        }
+
+        /**
+         * Remove a user of the file, the file is deleted with the last one.
+         */
+        void release() {
+            if (this.users.decrementAndGet() != 0) {
+                return;
+            }
+
+            if (!this.file.delete() && this.file.exists()) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to delete spool file {}", this.file);
+            }
+            CommonPrintServerSpool.this.files.remove(this.file);
+            synchronized (this) {
+                CommonPrintServerSpool.this.free(this.reserved);
+                this.reserved = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            this.release();
+        }
+
+    }
+
+    /**
+     * Spool statistics, JSON(ised) by the /spool route.
+     */
+    static final class Stats {
+
+        private final String directory;
+        private final int files;
+        private final long bytes;
+        private final long maxBytes;
+        private final long created;
+        private final long waits;
+        private final long rejected;
+
+        private Stats(CommonPrintServerSpool spool) {
+            this.directory = spool.directory.getPath();
+            this.files = spool.files.size();
+            this.bytes = spool.bytes;
+            this.maxBytes = spool.maxBytes;
+            this.created = spool.created.get();
+            this.waits = spool.waits.get();
+            this.rejected = spool.rejected.get();
+        }
+
+    }
+
+}
@@ -0,0 +1,310 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A label template, ex: ZPL or DPL code with ${variable} placeholders.
+ *
+ * The template is parsed once into a list of segments : literal parts are
+ * encoded to bytes up front, so rendering a label only copies bytes and
+ * encodes the variable values, without any regex nor intermediate String.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerTemplate {
+
+    private static final String ASCII_SAMPLE = "^XA~azAZ09{}$";
+
+    /** Reused render buffer of each thread. */
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    private final String name;
+    private final String source;
+    private final Charset charset;
+
+    /** True if ASCII characters are encoded as single bytes by the charset. */
+    private final boolean asciiCompatible;
+
+    /** Literal parts, one more than the variables : literal0 var0 literal1 ... literalN */
+    private final byte[][] literals;
+    private final String[] variables;
+    private final int literalsLength;
+
+    private CommonPrintServerTemplate(String name, String source, Charset charset, List<byte[]> literals, List<String> variables) {
+        int length = 0;
+
+        this.name = name;
+        this.source = source;
+        this.charset = charset;
+        this.asciiCompatible = Arrays.equals(ASCII_SAMPLE.getBytes(charset), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII));
+        this.literals = literals.toArray(new byte[0][]);
+        this.variables = variables.toArray(new String[0]);
+        for (byte[] literal : this.literals) {
+            length += literal.length;
+        }
+        this.literalsLength = length;
+    }
+
+    /**
+     * Parse a template.
+     *
+     * @param name Template name.
+     * @param source Template code, variables are written ${name}.
+     * @param charset Charset of the printed code.
+     * @return The compiled template.
+     */
+    static CommonPrintServerTemplate compile(String name, String source, Charset charset) {
+        List<byte[]> literals = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        int start = 0;
+        int position = 0;
+
+        while ((position = source.indexOf("${", position)) != -1) {
+            int end = source.indexOf('}', position + 2);
+
+            if (end == -1) {
+                break;
+            }
+
+            String variable = source.substring(position + 2, end);
+            if (!isVariableName(variable)) {
+                position += 2;
+                continue;
+            }
+
+            literals.add(source.substring(start, position).getBytes(charset));
+            variables.add(variable);
+            start = end + 1;
+            position = start;
+        }
+        literals.add(source.substring(start).getBytes(charset));
+
+        return new CommonPrintServerTemplate(name, source, charset, literals, variables);
+    }
+
+    /**
+     * Check if a string is a valid variable name.
+     *
+     * @param variable Variable name.
+     * @return True if only made of letters, digits, '_', '-' and '.'.
+     */
+    private static boolean isVariableName(String variable) {
+        if (variable.isEmpty()) {
+            return false;
+        }
+
+        for (int i = 0; i < variable.length(); i++) {
+            char c = variable.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getSource() {
+        return source;
+    }
+
+    /**
+     * Get the variables used by the template, in order of appearance.
+     *
+     * @return Variable names, without duplicates.
+     */
+    Set<String> getVariables() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(this.variables)));
+    }
+
+    /**
+     * Get the variables used by the template which have no value.
+     *
+     * @param values Variable values.
+     * @return Missing variable names, empty if none.
+     */
+    Set<String> getMissingVariables(Map<String, String> values) {
+        Set<String> missing = new LinkedHashSet<>();
+
+        for (String variable : this.variables) {
+            if (values.get(variable) == null) {
+                missing.add(variable);
+            }
+        }
+
+        return missing;
+    }
+
+    /**
+     * Render the template.
+     *
+     * @param values Variable values, a missing value is rendered empty.
+     * @return Code to print.
+     */
+    byte[] render(Map<String, String> values) {
+        Buffer buffer = buffers.get();
+
+        buffer.length = 0;
+        this.render(values, buffer);
+
+        byte[] code = Arrays.copyOf(buffer.bytes, buffer.length);
+        buffer.shrink();
+
+        return code;
+    }
+
+    /**
+     * Render the template at the end of a buffer.
+     *
+     * @param values Variable values, a missing value is rendered empty.
+     * @param buffer Buffer to render to.
+     */
+    void render(Map<String, String> values, Buffer buffer) {
+        buffer.ensureCapacity(buffer.length + this.literalsLength);
+
+        for (int i = 0; i < this.variables.length; i++) {
+            buffer.write(this.literals[i]);
+
+            String value = values.get(this.variables[i]);
+            if (value == null) {
+                continue;
+            }
+            if (this.asciiCompatible) {
+                buffer.write(value, this.charset);
+            } else {
+                buffer.write(value.getBytes(this.charset));
+            }
+        }
+        buffer.write(this.literals[this.variables.length]);
+    }
+
+    /**
+     * Get the template description, JSON(ised) by the /templates routes.
+     *
+     * @param withSource True to include the template code.
+     * @return Template description.
+     */
+    Info getInfo(boolean withSource) {
+        return new Info(this, withSource);
+    }
+
+    /**
+     * Template description.
+     */
+    static final class Info {
+
+        private final String name;
+        private final Set<String> variables;
+        private final String source;
+
+        private Info(CommonPrintServerTemplate template, boolean withSource) {
+            this.name = template.name;
+            this.variables = template.getVariables();
+            this.source = withSource ? template.source : null;
+        }
+
+    }
+
+    /**
+     * Growable byte buffer, reused between renders.
+     */
+    static final class Buffer {
+
+        private static final int DEFAULT_CAPACITY = 4096;
+
+        /** Largest capacity kept between renders, a bigger buffer is dropped. */
+        private static final int MAX_RETAINED_CAPACITY = 65536;
+
+        private byte[] bytes = new byte[DEFAULT_CAPACITY];
+        private int length = 0;
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        void clear() {
+            this.length = 0;
+        }
+
+        /**
+         * Clear the buffer and drop it back to its default capacity if a large
+         * render grew it, so a big label does not stay allocated on each thread.
+         */
+        private void shrink() {
+            this.length = 0;
+            if (this.bytes.length > MAX_RETAINED_CAPACITY) {
+                this.bytes = new byte[DEFAULT_CAPACITY];
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(capacity, this.bytes.length * 2));
+            }
+        }
+
+        private void write(byte[] data) {
+            this.ensureCapacity(this.length + data.length);
+            System.arraycopy(data, 0, this.bytes, this.length, data.length);
+            this.length += data.length;
+        }
+
+        /**
+         * Write a value, ASCII characters are copied directly, others go
+         * through the charset encoder.
+         */
+        private void write(String value, Charset charset) {
+            int size = value.length();
+
+            this.ensureCapacity(this.length + size);
+            for (int i = 0; i < size; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    this.write(value.substring(i).getBytes(charset));
+                    return;
+                }
+                this.bytes[this.length++] = (byte) c;
+            }
+        }
+
+    }
+
+}
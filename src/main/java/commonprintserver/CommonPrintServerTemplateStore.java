@@ -0,0 +1,161 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Common-PrintServer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package commonprintserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Store of the label templates. Templates are compiled once when saved, and
+ * persisted in the templates.dir directory to survive restarts.
+ *
+ * @author Alexandre D.
+ */
+final class CommonPrintServerTemplateStore {
+
+    /** Allowed template names, also used as file names. */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.-]{1,100}");
+
+    /** Extension of the template files. */
+    private static final String EXTENSION = ".tpl";
+
+    /** Used to handle a single instance of this class. */
+    private static final CommonPrintServerTemplateStore instance = new CommonPrintServerTemplateStore();
+
+    private final File directory;
+    private final Charset charset;
+    private final Map<String, CommonPrintServerTemplate> templates = new ConcurrentHashMap<>();
+
+    private CommonPrintServerTemplateStore() {
+        this.directory = new File(CommonPrintServerSettings.get("templates.dir", "templates"));
+        this.charset = Charset.forName(CommonPrintServerSettings.get("templates.charset", "UTF-8"));
+        this.load();
+    }
+
+    /**
+     * Return the unique class instance.
+     *
+     * @return The class instance
+     */
+    static CommonPrintServerTemplateStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Check if a template name is valid.
+     *
+     * @param name Template name.
+     * @return True if valid.
+     */
+    static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches() && !name.startsWith(".");
+    }
+
+    /**
+     * Load the saved templates.
+     */
+    private void load() {
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName().substring(0, file.getName().length() - EXTENSION.length());
+            try {
+                String source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                this.templates.put(name, CommonPrintServerTemplate.compile(name, source, this.charset));
+            } catch (IOException e) {
+                CommonPrintServerLogger.log(CommonPrintServerLogger.Level.WARN, "Unable to load template {}: {}", file, e.getMessage());
+            }
+        }
+        CommonPrintServerLogger.log(" Templates loaded (" + this.templates.size() + ")");
+    }
+
+    /**
+     * Compile and save a template, replacing any template with the same name.
+     *
+     * @param name Template name, must be valid.
+     * @param source Template code.
+     * @return The compiled template.
+     * @throws IOException If the template cannot be saved.
+     */
+    CommonPrintServerTemplate put(String name, String source) throws IOException {
+        CommonPrintServerTemplate template = CommonPrintServerTemplate.compile(name, source, this.charset);
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + this.directory);
+        }
+        Files.write(new File(this.directory, name + EXTENSION).toPath(), source.getBytes(StandardCharsets.UTF_8));
+        this.templates.put(name, template);
+
+        return template;
+    }
+
+    /**
+     * Get a template.
+     *
+     * @param name Template name.
+     * @return The template, or null if unknown.
+     */
+    CommonPrintServerTemplate get(String name) {
+        return this.templates.get(name);
+    }
+
+    /**
+     * Delete a template.
+     *
+     * @param name Template name.
+     * @return True if deleted, false if unknown.
+     * @throws IOException If the template file cannot be deleted.
+     */
+    boolean remove(String name) throws IOException {
+        if (this.templates.remove(name) == null) {
+            return false;
+        }
+        Files.deleteIfExists(new File(this.directory, name + EXTENSION).toPath());
+
+        return true;
+    }
+
+    /**
+     * Get the templates, sorted by name.
+     *
+     * @return List of templates.
+     */
+    List<CommonPrintServerTemplate> list() {
+        return new ArrayList<>(new TreeMap<>(this.templates).values());
+    }
+
+}